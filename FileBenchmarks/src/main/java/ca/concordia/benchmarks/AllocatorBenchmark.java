@@ -0,0 +1,95 @@
+package ca.concordia.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.concordia.filesystem.datastructures.BlockBitmap;
+
+// Old boolean[] free list scan vs the BlockBitmap allocator on a 1M block image.
+// Both get the same partly used disk, and every invocation gives its blocks back
+// so each one sees the same free space.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AllocatorBenchmark {
+
+    private static final int BLOCKS = 1 << 20;
+
+    @Param({"1", "16", "256"})
+    public int blocksPerWrite;
+
+    // How much of the disk is already taken by other files
+    @Param({"0.5", "0.9"})
+    public double used;
+
+    private boolean[] freeBlockList;
+    private BlockBitmap bitmap;
+    private int[] blocks;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        freeBlockList = new boolean[BLOCKS];
+        bitmap = new BlockBitmap(BLOCKS);
+        blocks = new int[blocksPerWrite];
+
+        // Alternate used and free runs so the disk looks like it had files written and deleted
+        Random random = new Random(42);
+        int averageFree = 8;
+        int averageUsed = (int) Math.max(1, Math.round(averageFree * used / (1 - used)));
+        int block = 0;
+        while (block < BLOCKS) {
+            block += 1 + random.nextInt(2 * averageUsed);
+            int freeRun = 1 + random.nextInt(2 * averageFree);
+            for (int i = block; i < Math.min(BLOCKS, block + freeRun); i++) {
+                freeBlockList[i] = true;
+                bitmap.setFree(i, true);
+            }
+            block += freeRun;
+        }
+    }
+
+    // What writeFile used to do: box every free block into a list, then take the first few
+    @Benchmark
+    public int legacyScan() {
+        ArrayList<Integer> usableBlockList = new ArrayList<>();
+        for (int i = 0; i < freeBlockList.length; i++) {
+            if (freeBlockList[i]) {
+                usableBlockList.add(i);
+            }
+        }
+
+        for (int i = 0; i < blocksPerWrite; i++) {
+            freeBlockList[usableBlockList.get(i)] = false;
+        }
+        for (int i = 0; i < blocksPerWrite; i++) {
+            freeBlockList[usableBlockList.get(i)] = true;
+        }
+        return usableBlockList.size();
+    }
+
+    @Benchmark
+    public int bitmap() {
+        bitmap.allocate(blocksPerWrite, blocks, 0);
+        for (int i = 0; i < blocksPerWrite; i++) {
+            bitmap.setFree(blocks[i], true);
+        }
+        return blocks[0];
+    }
+}
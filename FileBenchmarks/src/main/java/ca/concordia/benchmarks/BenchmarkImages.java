@@ -0,0 +1,58 @@
+package ca.concordia.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Properties;
+
+import ca.concordia.filesystem.DiskGeometry;
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.MountOptions;
+import ca.concordia.log.Log;
+
+// Scratch disk images for the benchmarks, every trial mounts a new one in its Level.Trial setup.
+// An image can only be mounted once per JVM, and a mounted FileSystemManager is never unmounted
+// (its image, cache and scrubber thread stay around), so trials rely on JMH forking a new JVM: keep @Fork at 1 or more.
+final class BenchmarkImages {
+
+    static final int BLOCK_SIZE = DiskGeometry.DEFAULT_BLOCK_SIZE;
+
+    private BenchmarkImages() {
+    }
+
+    // A new empty image in the temp directory, it gets formatted when mounted since it has no superblock
+    static File create() throws IOException {
+        File image = File.createTempFile("bench", ".dat");
+        quietLogs();
+        return image;
+    }
+
+    // Room for maxFiles files of up to fileSize bytes each. The image is sparse, only what gets written takes up space
+    static FileSystemManager mount(File image, int maxFiles, long fileSize, MountOptions options) throws Exception {
+        int blocksPerFile = (int) Math.max(1, (fileSize + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        // Rewrites need their new blocks before the old ones are freed, so leave room for 64 at once
+        int dataBlocks = (maxFiles + 64) * blocksPerFile + 1024;
+        DiskGeometry geometry = new DiskGeometry(BLOCK_SIZE, maxFiles, dataBlocks);
+        geometry = new DiskGeometry(BLOCK_SIZE, maxFiles, dataBlocks + geometry.getMetadataBlocks());
+        return new FileSystemManager(image.getPath(), geometry, options);
+    }
+
+    static void delete(File image) {
+        new File(image.getPath() + ".journal").delete();
+        image.delete();
+    }
+
+    static byte[] payload(int size) {
+        byte[] data = new byte[size];
+        Arrays.fill(data, (byte) 'x');
+        return data;
+    }
+
+    // Only warnings and errors, the log thread printing every mount would be measured too
+    private static void quietLogs() {
+        Properties properties = new Properties();
+        properties.setProperty("log.server", "warn");
+        properties.setProperty("log.fs", "warn");
+        Log.configure(properties);
+    }
+}
@@ -0,0 +1,91 @@
+package ca.concordia.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.MountOptions;
+
+// Single operations straight on FileSystemManager, no sockets: rewriting and reading one of
+// fileCount existing files, and a whole create/write/delete cycle of a new one.
+// Rerun with -t for several threads, every thread picks its files at random.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileOpsBenchmark {
+
+    @Param({"256", "4096", "65536", "1048576"})
+    public int fileSize;
+
+    @Param({"16", "256"})
+    public int fileCount;
+
+    private File image;
+    private FileSystemManager fs;
+    private byte[] payload;
+    private final AtomicInteger threads = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        image = BenchmarkImages.create();
+        // fileCount files, plus a spare for each thread doing createWriteDelete
+        fs = BenchmarkImages.mount(image, fileCount + 64, fileSize, new MountOptions());
+        payload = BenchmarkImages.payload(fileSize);
+        for (int i = 0; i < fileCount; i++) {
+            fs.createFile("f" + i);
+            fs.writeFile("f" + i, payload);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkImages.delete(image);
+    }
+
+    // Each thread's own name for createWriteDelete
+    @State(Scope.Thread)
+    public static class Spare {
+        String name;
+
+        @Setup(Level.Trial)
+        public void setUp(FileOpsBenchmark benchmark) {
+            name = "new" + benchmark.threads.getAndIncrement();
+        }
+    }
+
+    @Benchmark
+    public void write() throws Exception {
+        fs.writeFile("f" + ThreadLocalRandom.current().nextInt(fileCount), payload);
+    }
+
+    @Benchmark
+    public byte[] read() throws Exception {
+        return fs.readFile("f" + ThreadLocalRandom.current().nextInt(fileCount));
+    }
+
+    @Benchmark
+    public void createWriteDelete(Spare spare) throws Exception {
+        fs.createFile(spare.name);
+        fs.writeFile(spare.name, payload);
+        fs.deleteFile(spare.name);
+    }
+}
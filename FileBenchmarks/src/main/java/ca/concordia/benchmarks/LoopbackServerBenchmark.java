@@ -0,0 +1,156 @@
+package ca.concordia.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.concordia.filesystem.DiskGeometry;
+import ca.concordia.filesystem.MountOptions;
+import ca.concordia.server.FileServer;
+import ca.concordia.server.FrontEnd;
+import ca.concordia.server.ServerOptions;
+
+// The whole path: a FileServer on a loopback port, and one connection per benchmark thread speaking
+// the line protocol, each on its own file. Commands are sent one at a time waiting for each reply,
+// or PIPELINE at a time before reading the replies. Rerun with -t for more clients.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoopbackServerBenchmark {
+
+    private static final int PIPELINE = 16;
+
+    @Param({"BLOCKING", "SELECTOR"})
+    public FrontEnd frontEnd;
+
+    // Characters per WRITE
+    @Param({"16", "4096"})
+    public int payloadSize;
+
+    private File image;
+    private int port;
+    private String payload;
+    private final AtomicInteger clients = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        image = BenchmarkImages.create();
+        payload = new String(BenchmarkImages.payload(payloadSize), StandardCharsets.UTF_8);
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+
+        // start() never returns, the daemon thread goes away with the forked JVM
+        FileServer server = new FileServer(port, image.getPath(),
+                new DiskGeometry(BenchmarkImages.BLOCK_SIZE, 1024, 16384), new MountOptions(),
+                new ServerOptions().setFrontEnd(frontEnd));
+        Thread.ofPlatform().daemon().name("benchmark-server").start(server::start);
+
+        // Wait for it to listen
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (true) {
+            try (Socket probe = new Socket("localhost", port)) {
+                return;
+            } catch (IOException e) {
+                if (System.nanoTime() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkImages.delete(image);
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        private Socket socket;
+        private BufferedReader reader;
+        private PrintWriter writer;
+        private String file;
+
+        @Setup(Level.Trial)
+        public void connect(LoopbackServerBenchmark benchmark) throws Exception {
+            socket = new Socket("localhost", benchmark.port);
+            socket.setTcpNoDelay(true);
+            reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)));
+
+            file = "c" + benchmark.clients.getAndIncrement();
+            expectSuccess(command("CREATE " + file));
+            expectSuccess(command("WRITE " + file + " " + benchmark.payload));
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws Exception {
+            socket.close();
+        }
+
+        String command(String line) throws IOException {
+            writer.println(line);
+            writer.flush();
+            return reader.readLine();
+        }
+
+        private static void expectSuccess(String reply) throws IOException {
+            if (reply == null || !reply.regionMatches(true, 0, "SUCCESS", 0, 7)) {
+                throw new IOException("Unexpected reply: " + reply);
+            }
+        }
+    }
+
+    @Benchmark
+    public String write(Client client) throws Exception {
+        return client.command("WRITE " + client.file + " " + payload);
+    }
+
+    @Benchmark
+    public String read(Client client) throws Exception {
+        return client.command("READ " + client.file);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PIPELINE)
+    public String pipelinedReads(Client client) throws Exception {
+        for (int i = 0; i < PIPELINE; i++) {
+            client.writer.println("READ " + client.file);
+        }
+        client.writer.flush();
+
+        String reply = null;
+        for (int i = 0; i < PIPELINE; i++) {
+            reply = client.reader.readLine();
+        }
+        return reply;
+    }
+}
@@ -0,0 +1,79 @@
+package ca.concordia.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.concordia.filesystem.Batch;
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.MountOptions;
+
+// What a metadata flush costs, with and without the journal. Empty files have no data blocks,
+// so creating and deleting one is nothing but two metadata flushes. A batch of batchSize small writes
+// shares one flush (FileSystemManager.runBatch), divide its time by batchSize for the cost per file.
+// See AllocatorBenchmark for the block allocator on its own.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetadataBenchmark {
+
+    private static final int FILES = 256;
+
+    @Param({"true", "false"})
+    public boolean journaled;
+
+    @Param({"1", "16", "256"})
+    public int batchSize;
+
+    private File image;
+    private FileSystemManager fs;
+    private Batch batch;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        image = BenchmarkImages.create();
+        fs = BenchmarkImages.mount(image, FILES + 1, BenchmarkImages.BLOCK_SIZE,
+                new MountOptions().setJournaled(journaled));
+        for (int i = 0; i < FILES; i++) {
+            fs.createFile("f" + i);
+        }
+
+        batch = new Batch();
+        byte[] payload = BenchmarkImages.payload(100);
+        for (int i = 0; i < batchSize; i++) {
+            batch.write("f" + i, payload);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkImages.delete(image);
+    }
+
+    @Benchmark
+    public void createDeleteEmpty() throws Exception {
+        fs.createFile("empty");
+        fs.deleteFile("empty");
+    }
+
+    @Benchmark
+    public Exception[] batchedWrites() throws Exception {
+        return fs.runBatch(batch);
+    }
+}
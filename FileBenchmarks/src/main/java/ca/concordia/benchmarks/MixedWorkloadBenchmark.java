@@ -0,0 +1,98 @@
+package ca.concordia.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.MountOptions;
+
+// Reads and rewrites mixed at readPercent, over FILES files, at 1 to 64 threads.
+// The threads pick files at random, so with more threads they meet on the same lock stripes,
+// which is what this is for: how the file locks, the metadata lock and the group commit scale.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MixedWorkloadBenchmark {
+
+    private static final int FILES = 256;
+
+    @Param({"4096", "65536"})
+    public int fileSize;
+
+    @Param({"50", "90", "99"})
+    public int readPercent;
+
+    private File image;
+    private FileSystemManager fs;
+    private byte[] payload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        image = BenchmarkImages.create();
+        fs = BenchmarkImages.mount(image, FILES, fileSize, new MountOptions());
+        payload = BenchmarkImages.payload(fileSize);
+        for (int i = 0; i < FILES; i++) {
+            fs.createFile("f" + i);
+            fs.writeFile("f" + i, payload);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkImages.delete(image);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void threads01(Blackhole blackhole) throws Exception {
+        operation(blackhole);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void threads04(Blackhole blackhole) throws Exception {
+        operation(blackhole);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void threads16(Blackhole blackhole) throws Exception {
+        operation(blackhole);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void threads64(Blackhole blackhole) throws Exception {
+        operation(blackhole);
+    }
+
+    private void operation(Blackhole blackhole) throws Exception {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String name = "f" + random.nextInt(FILES);
+        if (random.nextInt(100) < readPercent) {
+            blackhole.consume(fs.readFile(name));
+        } else {
+            fs.writeFile(name, payload);
+        }
+    }
+}
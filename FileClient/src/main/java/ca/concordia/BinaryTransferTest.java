@@ -0,0 +1,177 @@
+package ca.concordia;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+
+// Switches to the binary protocol and round trips random binary files (newlines, zero bytes and all)
+// of a few sizes, checking the bytes that come back and timing the transfers.
+//
+// Usage: BinaryTransferTest [largest size in MB]
+public class BinaryTransferTest
+{
+    private static final int CREATE = 1;
+    private static final int WRITE = 2;
+    private static final int READ = 3;
+    private static final int DELETE = 4;
+    private static final int QUIT = 6;
+    private static final int APPEND = 7;
+    private static final int PWRITE = 8;
+
+    public static void main(String[] args) throws Exception {
+        int largestMb = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int[] sizes = {0, 1, 127, 4096, 4097, 1024 * 1024 + 3, largestMb * 1024 * 1024};
+
+        System.out.println("Binary Transfer Test");
+        try (Socket socket = new Socket("localhost", 12345)) {
+            // Switch over on the line protocol first
+            PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+            writer.println("BINARY");
+            System.out.println(readLine(socket));
+
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            Random random = new Random(42);
+
+            send(out, CREATE, "binary.bin", new byte[0]);
+            expectOk(in);
+
+            for (int size : sizes) {
+                byte[] data = new byte[size];
+                random.nextBytes(data);
+
+                long begin = System.nanoTime();
+                send(out, WRITE, "binary.bin", data);
+                expectOk(in);
+                long written = System.nanoTime();
+                send(out, READ, "binary.bin", new byte[0]);
+                byte[] back = expectOk(in);
+                long read = System.nanoTime();
+
+                System.out.printf("%9d bytes: %s, write %.1f ms, read %.1f ms%n", size,
+                        Arrays.equals(data, back) ? "OK" : "MISMATCH (" + back.length + " bytes back)",
+                        (written - begin) / 1e6, (read - written) / 1e6);
+            }
+
+            send(out, DELETE, "binary.bin", new byte[0]);
+            expectOk(in);
+
+            // An APPEND whose client goes away halfway must not leave its bytes where a later hole reads them
+            send(out, CREATE, "hole.bin", new byte[0]);
+            expectOk(in);
+            send(out, WRITE, "hole.bin", "abc".getBytes(StandardCharsets.UTF_8));
+            expectOk(in);
+            abandonAppend("hole.bin", 200000, 70000);
+            Thread.sleep(200); // let the server give up on it
+            send(out, PWRITE, "hole.bin", new byte[]{0, 0, 0, 20, 'Z'});
+            expectOk(in);
+            send(out, READ, "hole.bin", new byte[0]);
+            byte[] hole = expectOk(in);
+            byte[] expected = new byte[21];
+            expected[0] = 'a';
+            expected[1] = 'b';
+            expected[2] = 'c';
+            expected[20] = 'Z';
+            System.out.println("Hole after a broken APPEND: " + (Arrays.equals(hole, expected) ? "OK" : "MISMATCH"));
+            send(out, DELETE, "hole.bin", new byte[0]);
+            expectOk(in);
+
+            // On a deduplicated server the file's two blocks are the same block ("abc" then zeros, 4096 byte
+            // blocks), writing past the end of the file must not change the first one through the last
+            byte[] shared = new byte[4096 + 3];
+            shared[0] = shared[4096] = 'a';
+            shared[1] = shared[4097] = 'b';
+            shared[2] = shared[4098] = 'c';
+            send(out, CREATE, "shared.bin", new byte[0]);
+            expectOk(in);
+            send(out, WRITE, "shared.bin", shared);
+            expectOk(in);
+            send(out, PWRITE, "shared.bin", new byte[]{0, 0, 16, 8, 'Z'});
+            expectOk(in);
+            send(out, READ, "shared.bin", new byte[0]);
+            byte[] sharedBack = expectOk(in);
+            byte[] sharedExpected = Arrays.copyOf(shared, 4096 + 9);
+            sharedExpected[4096 + 8] = 'Z';
+            System.out.println("PWRITE into a shared last block: "
+                    + (Arrays.equals(sharedBack, sharedExpected) ? "OK" : "MISMATCH"));
+            send(out, DELETE, "shared.bin", new byte[0]);
+            expectOk(in);
+
+            // Errors come back in the trailer and the connection keeps going
+            send(out, READ, "missing", new byte[0]);
+            System.out.println("READ missing -> " + readReply(in));
+
+            send(out, QUIT, "", new byte[0]);
+            readReply(in);
+        }
+    }
+
+    private static void send(DataOutputStream out, int opcode, String name, byte[] body) throws Exception {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(opcode);
+        out.writeShort(nameBytes.length);
+        out.write(nameBytes);
+        out.writeInt(body.length);
+        out.write(body);
+        out.flush();
+    }
+
+    // Sends an APPEND header for declared bytes on a connection of its own, then only sent of them, and hangs up
+    private static void abandonAppend(String name, int declared, int sent) throws Exception {
+        try (Socket socket = new Socket("localhost", 12345)) {
+            PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+            writer.println("BINARY");
+            readLine(socket);
+
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            out.writeByte(APPEND);
+            out.writeShort(nameBytes.length);
+            out.write(nameBytes);
+            out.writeInt(declared);
+            byte[] data = new byte[sent];
+            Arrays.fill(data, (byte) 'X');
+            out.write(data);
+            out.flush();
+        }
+    }
+
+    private static byte[] expectOk(DataInputStream in) throws Exception {
+        Object reply = readReply(in);
+        if (reply instanceof String) {
+            throw new Exception("Server error: " + reply);
+        }
+        return (byte[]) reply;
+    }
+
+    // The body on success, the error message as a String on failure
+    private static Object readReply(DataInputStream in) throws Exception {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int length;
+        while ((length = in.readInt()) > 0) {
+            body.write(in.readNBytes(length));
+        }
+        if (length < 0) {
+            return "ERROR: " + new String(in.readNBytes(-length), StandardCharsets.UTF_8);
+        }
+        return body.toByteArray();
+    }
+
+    // Reads the switch reply a byte at a time so nothing after it is consumed
+    private static String readLine(Socket socket) throws Exception {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = socket.getInputStream().read()) != -1 && b != '\n') {
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8).trim();
+    }
+}
@@ -0,0 +1,122 @@
+package ca.concordia;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+// Opens lots of connections at once: most of them just sit there, the rest keep sending commands.
+// Run the server in virtual thread mode (the default) and compare with -Dserver.mode=thread_per_client.
+// Both sides need a high enough open file limit (ulimit -n) for all the sockets.
+//
+// Usage: ConnectionLoadTest [connections] [active] [rounds]
+public class ConnectionLoadTest
+{
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int active = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        System.out.println("Connection Load Test");
+        System.out.println((connections - active) + " idle and " + active + " active clients, "
+                + rounds + " rounds each");
+
+        AtomicInteger connected = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        ConcurrentLinkedQueue<Long> latencies = new ConcurrentLinkedQueue<>();
+        CountDownLatch idleReady = new CountDownLatch(connections - active);
+        CountDownLatch activeDone = new CountDownLatch(active);
+
+        // Virtual threads on this side too, 10k platform threads would be the bottleneck here
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            long begin = System.nanoTime();
+            for (int i = 0; i < connections - active; i++) {
+                executor.execute(() -> idleClient(idleReady, activeDone, connected, failed));
+            }
+            idleReady.await();
+            System.out.printf("%d idle connections open after %d ms (%d failed)%n",
+                    connected.get(), (System.nanoTime() - begin) / 1_000_000, failed.get());
+
+            begin = System.nanoTime();
+            for (int i = 0; i < active; i++) {
+                int id = i;
+                executor.execute(() -> activeClient(id, rounds, activeDone, connected, failed, latencies));
+            }
+            activeDone.await();
+            double seconds = (System.nanoTime() - begin) / 1_000_000_000.0;
+
+            long[] sorted = latencies.stream().mapToLong(Long::longValue).toArray();
+            Arrays.sort(sorted);
+            System.out.printf("%d connections, %d failed%n", connected.get(), failed.get());
+            System.out.printf("%d commands in %.2fs -> %.0f commands/s%n",
+                    sorted.length, seconds, sorted.length / seconds);
+            if (sorted.length > 0) {
+                System.out.printf("latency p50 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                        sorted[sorted.length / 2] / 1e6, sorted[(int) (sorted.length * 0.99)] / 1e6,
+                        sorted[sorted.length - 1] / 1e6);
+            }
+        }
+    }
+
+    // Connects and waits without sending anything until the active clients are done
+    private static void idleClient(CountDownLatch ready, CountDownLatch activeDone,
+            AtomicInteger connected, AtomicInteger failed) {
+        try (Socket socket = new Socket("localhost", 12345)) {
+            connected.incrementAndGet();
+            ready.countDown();
+            activeDone.await();
+
+            PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+            writer.println("QUIT");
+        }
+        catch (Exception e) {
+            failed.incrementAndGet();
+            ready.countDown();
+        }
+    }
+
+    // Each client does: CREATE, then WRITE/READ rounds, DELETE, then disconnect
+    private static void activeClient(int id, int rounds, CountDownLatch done, AtomicInteger connected,
+            AtomicInteger failed, ConcurrentLinkedQueue<Long> latencies) {
+        String fileName = "load" + id;
+        try (Socket socket = new Socket("localhost", 12345)) {
+            connected.incrementAndGet();
+            PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+
+            send(writer, reader, "CREATE " + fileName, latencies);
+            for (int i = 0; i < rounds; i++) {
+                send(writer, reader, "WRITE " + fileName + " data" + id + "-" + i, latencies);
+                send(writer, reader, "READ " + fileName, latencies);
+            }
+            send(writer, reader, "DELETE " + fileName, latencies);
+            writer.println("QUIT");
+            reader.readLine();
+        }
+        catch (Exception e) {
+            failed.incrementAndGet();
+            System.out.println("Client " + id + " error: " + e.getMessage());
+        }
+        finally {
+            done.countDown();
+        }
+    }
+
+    private static void send(PrintWriter writer, BufferedReader reader, String command,
+            ConcurrentLinkedQueue<Long> latencies) throws Exception {
+        long start = System.nanoTime();
+        writer.println(command);
+        String response = reader.readLine();
+        latencies.add(System.nanoTime() - start);
+        if (response == null || response.startsWith("ERROR")) {
+            throw new Exception(command + " -> " + response);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package ca.concordia;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+public class LockStressTest
+{
+    // How long each round hammers the server
+    private static final long ROUND_MILLIS = 3000;
+    // The server only has room for a few files, so stay under MAXFILES
+    private static final int[] WRITER_COUNTS = {1, 2, 4};
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("Lock Stress Test");
+        System.out.println("Each writer keeps rewriting its own file, throughput should grow with the writers");
+
+        for (int writers : WRITER_COUNTS) {
+            runRound(writers);
+        }
+    }
+
+    // Starts all the writers at the same time and counts the writes the server acknowledged
+    private static void runRound(int writers) throws Exception {
+        AtomicLong completed = new AtomicLong();
+        CountDownLatch ready = new CountDownLatch(writers);
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[writers];
+
+        for (int i = 0; i < writers; i++) {
+            int id = i + 1;
+            threads[i] = new Thread(() -> writerClient(id, ready, start, completed));
+            threads[i].start();
+        }
+
+        ready.await();
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - begin) / 1_000_000_000.0;
+
+        System.out.printf("%d writer(s): %d writes in %.2fs -> %.0f writes/s%n",
+                writers, completed.get(), seconds, completed.get() / seconds);
+    }
+
+    // Each client does: CREATE, WRITE until the round is over, DELETE, then disconnect
+    private static void writerClient(int id, CountDownLatch ready, CountDownLatch start, AtomicLong completed) {
+        String fileName = "stress" + id + ".txt";
+        boolean counted = false;
+        try (Socket socket = new Socket("localhost", 12345)) {
+            PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+
+            writer.println("CREATE " + fileName);
+            reader.readLine();
+
+            ready.countDown();
+            counted = true;
+            start.await();
+
+            long end = System.currentTimeMillis() + ROUND_MILLIS;
+            long count = 0;
+            while (System.currentTimeMillis() < end) {
+                writer.println("WRITE " + fileName + " data" + id + "-" + count);
+                String response = reader.readLine();
+                if (response == null || response.startsWith("ERROR")) {
+                    System.out.println("Client " + id + " error: " + response);
+                    break;
+                }
+                count++;
+            }
+            completed.addAndGet(count);
+
+            writer.println("DELETE " + fileName);
+            reader.readLine();
+            writer.println("QUIT");
+            reader.readLine();
+
+        }
+        catch (Exception e) {
+            if (!counted) {
+                ready.countDown();
+            }
+            System.out.println("Client " + id + " error: " + e.getMessage());
+        }
+    }
+}
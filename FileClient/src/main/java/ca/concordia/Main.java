@@ -25,16 +25,31 @@ public class Main {
                     BufferedReader reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
                     PrintWriter writer = new PrintWriter(clientSocket.getOutputStream(), true)
             ) {
+                // Responses are printed as they come in, so commands don't wait for the previous reply
+                // (pipelining, e.g. a file of commands piped in) and EXEC's reply lines all get printed
+                Thread responses = new Thread(() -> {
+                    try {
+                        String response;
+                        while ((response = reader.readLine()) != null) {
+                            System.out.println("Response from server: " + response);
+                        }
+                    } catch (Exception e) {
+                        // socket closed
+                    }
+                });
+                responses.start();
+
                 while (userInput != null && !userInput.isEmpty() && !userInput.equalsIgnoreCase("exit") && !userInput.equalsIgnoreCase("quit")) {
                     writer.println(userInput);
                     System.out.println("Message sent to the server: " + userInput);
-                    //get response
-                    String response = reader.readLine();
-                    System.out.println("Response from server: " + response);
 
-                    userInput = scanner.nextLine(); // Read next line
+                    userInput = scanner.hasNextLine() ? scanner.nextLine() : null; // Read next line
                 }
 
+                // Wait for the replies still on their way, the server closes its side once it has sent them
+                clientSocket.shutdownOutput();
+                responses.join();
+
                 // Close the socket
                 clientSocket.close();
                 System.out.println("Connection closed.");
@@ -0,0 +1,114 @@
+package ca.concordia;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+
+// Uploads a bunch of small files three ways and times them: one command at a time waiting for each
+// reply, pipelined (every command sent before reading any reply), and in MULTI/EXEC batches.
+// A fresh filesystem.dat has room for 1024 files.
+//
+// Usage: PipelineTest [files] [batch size]
+public class PipelineTest
+{
+    public static void main(String[] args) throws Exception {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+        System.out.println("Pipeline Test");
+        try (Socket socket = new Socket("localhost", 12345)) {
+            socket.setTcpNoDelay(true);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)));
+
+            String[] modes = {"one at a time", "pipelined", "MULTI/EXEC"};
+            for (int mode = 0; mode < modes.length; mode++) {
+                long begin = System.nanoTime();
+                int errors;
+                if (mode == 0) {
+                    errors = 0;
+                    for (int i = 0; i < files; i++) {
+                        for (String command : upload(mode, i)) {
+                            writer.println(command);
+                            writer.flush();
+                            errors += isError(reader.readLine()) ? 1 : 0;
+                        }
+                    }
+                } else if (mode == 1) {
+                    for (int i = 0; i < files; i++) {
+                        for (String command : upload(mode, i)) {
+                            writer.println(command);
+                        }
+                    }
+                    writer.flush();
+                    errors = 0;
+                    for (int i = 0; i < files * 2; i++) {
+                        errors += isError(reader.readLine()) ? 1 : 0;
+                    }
+                } else {
+                    errors = 0;
+                    for (int first = 0; first < files; first += batchSize) {
+                        int last = Math.min(files, first + batchSize);
+                        writer.println("MULTI");
+                        for (int i = first; i < last; i++) {
+                            for (String command : upload(mode, i)) {
+                                writer.println(command);
+                            }
+                        }
+                        writer.println("EXEC");
+                        writer.flush();
+
+                        // MULTI, a QUEUED per command, then EXEC's count line and one line per command
+                        int replies = 1 + (last - first) * 2 + 1 + (last - first) * 2;
+                        for (int r = 0; r < replies; r++) {
+                            errors += isError(reader.readLine()) ? 1 : 0;
+                        }
+                    }
+                }
+                double ms = (System.nanoTime() - begin) / 1e6;
+
+                // Check what landed, then clean up for the next mode
+                int wrong = 0;
+                for (int i = 0; i < files; i++) {
+                    writer.println("READ " + name(mode, i));
+                    writer.println("DELETE " + name(mode, i));
+                }
+                writer.flush();
+                for (int i = 0; i < files; i++) {
+                    if (!("Success reading: " + contents(i)).equals(reader.readLine())) {
+                        wrong++;
+                    }
+                    reader.readLine();
+                }
+
+                System.out.printf("%-14s %d files in %.1f ms (%.0f files/s), %d errors, %d wrong%n",
+                        modes[mode], files, ms, files / (ms / 1000), errors, wrong);
+            }
+
+            writer.println("QUIT");
+            writer.flush();
+            reader.readLine();
+        }
+    }
+
+    private static String[] upload(int mode, int i) {
+        return new String[] {"CREATE " + name(mode, i), "WRITE " + name(mode, i) + " " + contents(i)};
+    }
+
+    private static String name(int mode, int i) {
+        return "p" + mode + "_" + i;
+    }
+
+    private static String contents(int i) {
+        return "small file number " + i;
+    }
+
+    private static boolean isError(String reply) {
+        return reply == null || reply.startsWith("ERROR") || reply.startsWith("Please");
+    }
+}
@@ -1,12 +1,31 @@
 package ca.concordia;
 
+import ca.concordia.filesystem.DiskGeometry;
+import ca.concordia.filesystem.MountOptions;
+import ca.concordia.log.Log;
 import ca.concordia.server.FileServer;
+import ca.concordia.server.ServerOptions;
 
 public class Main {
     public static void main(String[] args) {
         System.out.printf("Hello and welcome!");
 
-        FileServer server = new FileServer(12345, "filesystem.dat", 10 * 128);
+        // 4 KiB blocks, 16384 of them (64 MiB), room for 1024 files.
+        // Only used when filesystem.dat doesn't exist yet, otherwise its own geometry is kept.
+        DiskGeometry geometry = new DiskGeometry(DiskGeometry.DEFAULT_BLOCK_SIZE, 1024, 16384);
+        // -Dfs.dedup=true formats it so files with the same blocks share them
+        if (Boolean.getBoolean("fs.dedup")) {
+            geometry = geometry.deduplicated();
+        }
+        // -Dfs.compress=true formats it so files can be stored compressed, and compresses them
+        if (Boolean.getBoolean("fs.compress")) {
+            geometry = geometry.compressible();
+        }
+        // Runtime settings come from -Dfs.*, -Dserver.* and -Dlog.* properties, see MountOptions, ServerOptions and Log
+        Log.configure(System.getProperties());
+        MountOptions options = MountOptions.fromProperties(System.getProperties());
+        ServerOptions serverOptions = ServerOptions.fromProperties(System.getProperties());
+        FileServer server = new FileServer(12345, "filesystem.dat", geometry, options, serverOptions);
         // Start the file server
         server.start();
     }
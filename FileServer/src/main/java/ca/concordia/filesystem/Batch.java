@@ -0,0 +1,42 @@
+package ca.concordia.filesystem;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Creates and writes for FileSystemManager.runBatch(), run in the order they were added
+public class Batch {
+
+    private final List<String> fileNames = new ArrayList<>();
+    private final List<byte[]> contents = new ArrayList<>(); // null for a create
+
+    public Batch create(String fileName) {
+        fileNames.add(fileName);
+        contents.add(null);
+        return this;
+    }
+
+    public Batch write(String fileName, byte[] contents) {
+        if (contents == null) {
+            throw new IllegalArgumentException("Contents cannot be null.");
+        }
+        fileNames.add(fileName);
+        this.contents.add(contents);
+        return this;
+    }
+
+    public int size() {
+        return fileNames.size();
+    }
+
+    public boolean isCreate(int i) {
+        return contents.get(i) == null;
+    }
+
+    public String getFileName(int i) {
+        return fileNames.get(i);
+    }
+
+    public byte[] getContents(int i) {
+        return contents.get(i);
+    }
+}
@@ -0,0 +1,134 @@
+package ca.concordia.filesystem;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import ca.concordia.filesystem.datastructures.BlockBitmap;
+import ca.concordia.filesystem.device.BlockDevice;
+import ca.concordia.log.Log;
+
+// Zeroes freed blocks in the background (ScrubMode.BACKGROUND), so deletes only have to touch metadata.
+// Each batch is zeroed holding the metadata lock, after checking its blocks are still free: a block
+// can't be handed out while we write to it, and one that was reused in the meantime is just skipped.
+// With a journal, blocks are only zeroed once the transaction that freed them is on disk: until then
+// a crash brings their file back, and it should come back with its data.
+class BlockScrubber implements Runnable {
+
+    private static final int BATCH_BYTES = 64 * 1024; // zeroed per lock hold, keeps the lock short
+
+    private final BlockDevice disk;
+    private final BlockBitmap freeBlocks;
+    private final ReentrantLock metaLock;
+    private final MetadataJournal journal; // null without one
+    private final Condition work;
+    private final int blockSize;
+    private final int batchBlocks;
+    private final byte[] zeros;
+    private final BitSet pending = new BitSet(); // freed blocks still to zero, guarded by metaLock
+    private final BitSet ready = new BitSet(); // pending ones whose free is durable, guarded by metaLock
+    private boolean stopped; // guarded by metaLock
+    private Thread thread;
+
+    BlockScrubber(BlockDevice disk, BlockBitmap freeBlocks, ReentrantLock metaLock, MetadataJournal journal,
+            int blockSize) {
+        this.disk = disk;
+        this.freeBlocks = freeBlocks;
+        this.metaLock = metaLock;
+        this.journal = journal;
+        this.work = metaLock.newCondition();
+        this.blockSize = blockSize;
+        this.batchBlocks = Math.max(1, BATCH_BYTES / blockSize);
+        this.zeros = new byte[batchBlocks * blockSize];
+    }
+
+    void start() {
+        thread = Thread.ofPlatform().daemon().name("block-scrubber").start(this);
+    }
+
+    // Lets the batch being zeroed finish and waits for the thread to end, what's left stays unzeroed.
+    // Not an interrupt: that would close a FileChannel the disk writes go through
+    void stop() throws InterruptedException {
+        metaLock.lock();
+        try {
+            stopped = true;
+            work.signal();
+        } finally {
+            metaLock.unlock();
+        }
+        thread.join();
+    }
+
+    // Queues blocks that were just freed. Must hold metaLock
+    void add(int start, int length) {
+        pending.set(start, start + length);
+        ready.clear(start, start + length); // reused and freed again, this free isn't durable yet
+        work.signal();
+    }
+
+    // Blocks waiting to be zeroed. Must hold metaLock
+    int pendingBlocks() {
+        return pending.cardinality() + ready.cardinality();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            long lsn = -1; // to wait for before the blocks moved to ready can be zeroed
+            metaLock.lock();
+            try {
+                while (!stopped && pending.isEmpty() && ready.isEmpty()) {
+                    work.await();
+                }
+                if (stopped) {
+                    return;
+                }
+
+                if (ready.isEmpty()) {
+                    // Every free in pending has been committed by now, it just may not be on disk yet
+                    ready.or(pending);
+                    pending.clear();
+                    if (journal != null) {
+                        lsn = journal.appendedLsn();
+                    }
+                } else {
+                    // The longest run of ready blocks that are still free, up to a batch
+                    int start = ready.nextSetBit(0);
+                    int end = start;
+                    while (end < start + batchBlocks && ready.get(end) && freeBlocks.isFree(end)) {
+                        end++;
+                    }
+
+                    if (end > start) {
+                        disk.write((long) start * blockSize, zeros, 0, (end - start) * blockSize);
+                        ready.clear(start, end);
+                    } else {
+                        ready.clear(start); // reused, the new owner overwrites it
+                    }
+                }
+
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                // Leave the blocks as they are, they're free either way
+                Log.FS.error("Scrubbing freed blocks failed: {}", e.getMessage());
+                ready.clear();
+            } finally {
+                metaLock.unlock();
+            }
+
+            if (lsn != -1) {
+                try {
+                    journal.awaitDurable(lsn);
+                } catch (IOException e) {
+                    // The frees may never reach the disk, so the blocks may still be their files'
+                    Log.FS.error("Scrubbing freed blocks failed: {}", e.getMessage());
+                    metaLock.lock();
+                    ready.clear();
+                    metaLock.unlock();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package ca.concordia.filesystem;
+
+import java.nio.ByteBuffer;
+
+// Layout of a disk image. It's picked when the image is formatted and saved in the superblock,
+// so an existing image is always mounted with the geometry it was made with.
+//
+// | superblock | FEntry table | FNode table | free block list | block hashes | data blocks ... |
+// '----------------- metadata, as many whole blocks as needed ---------------'
+// Only deduplicated images have the block hashes.
+public class DiskGeometry {
+
+    public static final int MIN_BLOCK_SIZE = 128;
+    public static final int MAX_BLOCK_SIZE = 1024 * 1024;
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    static final int MAGIC = 0x46534D31; // "FSM1"
+    // 1: one boolean per block in the free list
+    // 2: free list is a bitmap of longs
+    // 3: FNodes are extents (next, length) instead of single blocks
+    // 4: deduplicated, FNodes are taken as needed and say where their run starts (next, length, start)
+    //    instead of being the node of their first block, so a block can be in several files. Every block
+    //    has a content hash. Chosen with deduplicated(), version 3 is still the default.
+    // 5: FEntries have flags (compressed files, chosen with compressible()), and the superblock has a word of
+    //    features so they don't each need their own version: deduplication, and being one shard of a set
+    //    (the shard and the shard count follow the features word, see sharded()).
+    static final int FORMAT_VERSION = 5; // newest there is
+    static final int DEFAULT_FORMAT_VERSION = 3;
+    static final int DEDUP_FORMAT_VERSION = 4;
+    static final int FEATURES_FORMAT_VERSION = 5;
+    static final int FEATURE_DEDUP = 1;
+    static final int FEATURE_SHARD = 2;
+    static final int SUPERBLOCK_SIZE = 64;
+
+    static final int NAME_BYTES = 11;
+    static final int ENTRY_SIZE = NAME_BYTES + 4 + 4; // name, size, first block (, flags from version 5)
+    public static final int ENTRY_COMPRESSED = 1; // FEntry flag, the file's blocks hold compressed chunks
+
+    private final int formatVersion;
+    private final int features;
+    private final int shard; // which image of a ShardedFileSystem this is, 0 of 1 when it isn't sharded
+    private final int shardCount;
+    private final int blockSize;
+    private final int maxFiles;
+    private final int maxBlocks;
+    private final int metadataBlocks;
+
+    public DiskGeometry(int blockSize, int maxFiles, int maxBlocks) {
+        this(DEFAULT_FORMAT_VERSION, 0, blockSize, maxFiles, maxBlocks);
+    }
+
+    // Used when mounting, older images keep the layout of the version they were formatted with
+    DiskGeometry(int formatVersion, int features, int blockSize, int maxFiles, int maxBlocks) {
+        this(formatVersion, features, 0, 1, blockSize, maxFiles, maxBlocks);
+    }
+
+    private DiskGeometry(int formatVersion, int features, int shard, int shardCount, int blockSize, int maxFiles,
+            int maxBlocks) {
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || Integer.bitCount(blockSize) != 1) {
+            throw new IllegalArgumentException("Block size must be a power of two between "
+                    + MIN_BLOCK_SIZE + " and " + MAX_BLOCK_SIZE + " bytes.");
+        }
+        if (maxFiles < 1 || maxBlocks < 1) {
+            throw new IllegalArgumentException("Disk needs room for at least one file and one block.");
+        }
+
+        if (features != 0 && formatVersion < FEATURES_FORMAT_VERSION) {
+            throw new IllegalArgumentException("Format version " + formatVersion + " has no features.");
+        }
+        if (((features & FEATURE_SHARD) != 0) != (shardCount > 1) || shard < 0 || shard >= shardCount) {
+            throw new IllegalArgumentException("Invalid shard " + shard + " of " + shardCount + ".");
+        }
+
+        this.formatVersion = formatVersion;
+        this.features = features;
+        this.shard = shard;
+        this.shardCount = shardCount;
+        this.blockSize = blockSize;
+        this.maxFiles = maxFiles;
+        this.maxBlocks = maxBlocks;
+
+        boolean dedup = isDeduplicated(formatVersion, features);
+        long metadataSize = SUPERBLOCK_SIZE + (long) maxFiles * entrySize(formatVersion)
+                + (long) maxBlocks * nodeSize(formatVersion, dedup) + freeListSize(formatVersion, maxBlocks)
+                + hashTableSize(dedup, maxBlocks);
+        if (metadataSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Metadata for " + maxBlocks + " blocks is too big.");
+        }
+        this.metadataBlocks = (int) ((metadataSize + blockSize - 1) / blockSize);
+
+        if (metadataBlocks >= maxBlocks) {
+            throw new IllegalArgumentException("Disk is too small to hold its own metadata.");
+        }
+    }
+
+    // Old sizing: 128 byte blocks and 5 files, as many blocks as fit in totalSize
+    public static DiskGeometry forSize(long totalSize) {
+        return new DiskGeometry(MIN_BLOCK_SIZE, 5, (int) (totalSize / MIN_BLOCK_SIZE));
+    }
+
+    public int getFormatVersion() {
+        return formatVersion;
+    }
+
+    // Same size, formatted for block deduplication instead
+    public DiskGeometry deduplicated() {
+        if (formatVersion >= FEATURES_FORMAT_VERSION) {
+            return new DiskGeometry(formatVersion, features | FEATURE_DEDUP, shard, shardCount, blockSize, maxFiles,
+                    maxBlocks);
+        }
+        return new DiskGeometry(DEDUP_FORMAT_VERSION, 0, blockSize, maxFiles, maxBlocks);
+    }
+
+    // Same size and deduplication, formatted so files can be stored compressed
+    public DiskGeometry compressible() {
+        int withFeatures = isDeduplicated() ? FEATURE_DEDUP : 0;
+        if (isSharded()) {
+            withFeatures |= FEATURE_SHARD;
+        }
+        return new DiskGeometry(FEATURES_FORMAT_VERSION, withFeatures, shard, shardCount, blockSize, maxFiles,
+                maxBlocks);
+    }
+
+    // Same size and deduplication, formatted as image number shard of shardCount. The superblock remembers it,
+    // so ShardedFileSystem can tell when the images get mounted with another count. Needs the features word,
+    // so older versions become version 5. A single shard is just an ordinary image
+    public DiskGeometry sharded(int shard, int shardCount) {
+        if (shardCount == 1 && shard == 0) {
+            return this;
+        }
+        int withFeatures = (isDeduplicated() ? FEATURE_DEDUP : 0) | FEATURE_SHARD;
+        return new DiskGeometry(FEATURES_FORMAT_VERSION, withFeatures, shard, shardCount, blockSize, maxFiles,
+                maxBlocks);
+    }
+
+    // One image of several, see sharded()
+    public boolean isSharded() {
+        return (features & FEATURE_SHARD) != 0;
+    }
+
+    public int getShard() {
+        return shard;
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    // Old images keep linking files one block at a time
+    public boolean hasExtents() {
+        return formatVersion >= 3;
+    }
+
+    // Blocks can be shared by files with the same data in them, see deduplicated()
+    public boolean isDeduplicated() {
+        return isDeduplicated(formatVersion, features);
+    }
+
+    private static boolean isDeduplicated(int formatVersion, int features) {
+        return formatVersion == DEDUP_FORMAT_VERSION || (features & FEATURE_DEDUP) != 0;
+    }
+
+    // FEntries have flags, so a file can be compressed, see compressible()
+    public boolean isCompressible() {
+        return formatVersion >= FEATURES_FORMAT_VERSION;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getMaxFiles() {
+        return maxFiles;
+    }
+
+    public int getMaxBlocks() {
+        return maxBlocks;
+    }
+
+    // Blocks 0 .. metadataBlocks - 1 hold the metadata and are never handed out
+    public int getMetadataBlocks() {
+        return metadataBlocks;
+    }
+
+    public long getTotalSize() {
+        return (long) maxBlocks * blockSize;
+    }
+
+    // Byte offsets of each table from the start of the image
+
+    public int entryTableOffset() {
+        return SUPERBLOCK_SIZE;
+    }
+
+    public int entrySize() {
+        return entrySize(formatVersion);
+    }
+
+    private static int entrySize(int formatVersion) {
+        return formatVersion >= FEATURES_FORMAT_VERSION ? ENTRY_SIZE + 4 : ENTRY_SIZE;
+    }
+
+    public int nodeTableOffset() {
+        return entryTableOffset() + maxFiles * entrySize();
+    }
+
+    public int nodeSize() {
+        return nodeSize(formatVersion, isDeduplicated());
+    }
+
+    private static int nodeSize(int formatVersion, boolean dedup) {
+        if (dedup) {
+            return 12; // next, length, start
+        }
+        return formatVersion >= 3 ? 8 : 4; // next (, length)
+    }
+
+    public int freeListOffset() {
+        return nodeTableOffset() + maxBlocks * nodeSize();
+    }
+
+    public int hashTableOffset() {
+        return freeListOffset() + (int) freeListSize(formatVersion, maxBlocks);
+    }
+
+    public int metadataSize() {
+        return hashTableOffset() + (int) hashTableSize(isDeduplicated(), maxBlocks);
+    }
+
+    private static long hashTableSize(boolean dedup, int maxBlocks) {
+        return dedup ? (long) maxBlocks * 8 : 0;
+    }
+
+    private static long freeListSize(int formatVersion, int maxBlocks) {
+        if (formatVersion == 1) {
+            return maxBlocks;
+        }
+        return ((maxBlocks + 63L) >>> 6) * 8;
+    }
+
+    public void writeSuperblock(ByteBuffer buffer) {
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, formatVersion);
+        buffer.putInt(8, blockSize);
+        buffer.putInt(12, maxFiles);
+        buffer.putInt(16, maxBlocks);
+        buffer.putInt(20, metadataBlocks);
+        if (formatVersion >= FEATURES_FORMAT_VERSION) {
+            buffer.putInt(24, features);
+        }
+        if (isSharded()) {
+            buffer.putInt(28, shard);
+            buffer.putInt(32, shardCount);
+        }
+    }
+
+    // Returns null if the buffer doesn't start with a superblock, ie. the image was never formatted
+    public static DiskGeometry readSuperblock(ByteBuffer buffer) {
+        if (buffer.limit() < SUPERBLOCK_SIZE || buffer.getInt(0) != MAGIC) {
+            return null;
+        }
+
+        int version = buffer.getInt(4);
+        if (version < 1 || version > FORMAT_VERSION) {
+            throw new IllegalStateException("Unsupported disk format version " + version + ".");
+        }
+
+        int features = version >= FEATURES_FORMAT_VERSION ? buffer.getInt(24) : 0;
+        if ((features & ~(FEATURE_DEDUP | FEATURE_SHARD)) != 0) {
+            throw new IllegalStateException("Unsupported disk features " + Integer.toHexString(features) + ".");
+        }
+
+        int shard = 0;
+        int shardCount = 1;
+        if ((features & FEATURE_SHARD) != 0) {
+            shard = buffer.getInt(28);
+            shardCount = buffer.getInt(32);
+            if (shardCount < 2 || shard < 0 || shard >= shardCount) {
+                throw new IllegalStateException("Superblock is corrupted.");
+            }
+        }
+
+        DiskGeometry geometry = new DiskGeometry(version, features, shard, shardCount, buffer.getInt(8),
+                buffer.getInt(12), buffer.getInt(16));
+        if (geometry.metadataBlocks != buffer.getInt(20)) {
+            throw new IllegalStateException("Superblock is corrupted.");
+        }
+        return geometry;
+    }
+
+    @Override
+    public String toString() {
+        boolean dedupFeature = (features & FEATURE_DEDUP) != 0;
+        return "v" + formatVersion + (dedupFeature ? " deduplicated" : "")
+                + (isSharded() ? " shard " + shard + " of " + shardCount : "") + ", "
+                + maxBlocks + " x " + blockSize + " byte blocks, " + maxFiles + " files, "
+                + metadataBlocks + " metadata block(s)";
+    }
+}
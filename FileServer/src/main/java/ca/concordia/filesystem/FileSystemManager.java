@@ -1,292 +1,945 @@
 package ca.concordia.filesystem;
 
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import ca.concordia.filesystem.datastructures.BlockBitmap;
+import ca.concordia.filesystem.datastructures.BlockHashIndex;
+import ca.concordia.filesystem.datastructures.ExtentList;
 import ca.concordia.filesystem.datastructures.FEntry;
 import ca.concordia.filesystem.datastructures.FNode;
+import ca.concordia.filesystem.datastructures.FileNameIndex;
+import ca.concordia.filesystem.device.BlockDevice;
+import ca.concordia.filesystem.device.CachedBlockDevice;
+import ca.concordia.filesystem.device.FileChannelDevice;
+import ca.concordia.filesystem.device.MappedBlockDevice;
+import ca.concordia.filesystem.device.MeteredBlockDevice;
+import ca.concordia.log.Log;
+import ca.concordia.metrics.Metrics;
 
 public class FileSystemManager {
 
-    private static final int BLOCK_SIZE = 128; // Example block size
-    private final int MAXFILES = 5;
-    private final int MAXBLOCKS = 10;
-
-    private static FileSystemManager instance = null; // no instance at first
-    private final RandomAccessFile disk;
-    private final ReadWriteLock rwLock = new ReentrantReadWriteLock();
+    private static final int LOCK_STRIPES = 16; // Must be a power of two
+    private static final int FLUSH_GAP = 512; // Clean bytes worth rewriting to save a separate metadata write
+    private static final int STREAM_CHUNK = 64 * 1024; // Buffer size when copying file data to or from a stream
+    private static final int WRITE_RESERVE_BLOCKS = 1024; // Most blocks a streaming write reserves ahead of its data
+    private static final int COMPRESS_CHUNK = 64 * 1024; // Bytes of a compressed file that are compressed together
+    private final DiskGeometry geometry;
+    private final int BLOCK_SIZE;
+    private final int MAXFILES;
+    private final int MAXBLOCKS;
+    private final byte[] zeroBlock; // never written to
+    private final ScrubMode scrubMode;
+    private final boolean compress; // whole-file writes are stored compressed
+    private BlockScrubber scrubber; // only in ScrubMode.BACKGROUND
+    private final String imagePath; // canonical, the key in mountedImages
+
+    private final BlockDevice disk;
+    private final CachedBlockDevice blockCache; // same object as disk, or null without a cache
+    // One manager per image, two would each think they own its blocks. Canonical paths of the mounted ones
+    private static final HashSet<String> mountedImages = new HashSet<>();
     private static final Object instanceLock = new Object();
 
+    // Writers of a file take a lock picked from the filename hash, so writers of different files
+    // don't wait on each other. Readers don't take it: writers never change blocks a reader can see,
+    // they write new ones and publish them, and readers keep the version they started with (see ReadEpochs).
+    private final ReentrantLock[] fileLocks = new ReentrantLock[LOCK_STRIPES];
+    // Short-held lock for the allocator metadata (fEntryTable, fNodeTable, freeBlocks, epochs).
+    // Always taken after a file lock, never before.
+    private final ReentrantLock metaLock = new ReentrantLock();
+    private final ReadEpochs epochs = new ReadEpochs(); // old blocks waiting for their readers
+
     private FEntry[] fEntryTable; // Array of inodes
+    private FileNameIndex nameIndex; // filename -> fEntryTable slot
+    private int[] freeEntrySlots; // Stack of empty fEntryTable slots
+    private int freeEntryCount;
     private FNode[] fNodeTable;
-    private boolean[] freeBlockList; // Bitmap for free blocks
+    private BlockBitmap freeBlocks; // Bitmap for free blocks
+
+    // Deduplicated images only (DiskGeometry.isDeduplicated()), null otherwise. A block can be in several files,
+    // or several times in one file, blockRefs counts how many. Only the hashes are saved, the rest is worked
+    // out from the chains at mount (rebuildDedup()).
+    private BlockBitmap freeNodes; // FNodes aren't tied to a block there, they're handed out like blocks
+    private int[] blockRefs;
+    private long[] blockHashes; // content hash of each block, 0 if it isn't in hashIndex
+    private BlockHashIndex hashIndex; // hash -> block with that content
+
+    // Serialized copy of the metadata region. Mutations mark what they touched and
+    // writeMetaData() only encodes and writes those parts back. freeBlocks tracks its own words.
+    private ByteBuffer metaImage;
+    private final BitSet dirtyEntries = new BitSet();
+    private final BitSet dirtyNodes = new BitSet();
+    private final BitSet dirtyHashes = new BitSet();
+    private int flushStart = -1; // byte range waiting to be written by writeMetaData()
+    private int flushEnd = -1;
+    private int flushedBytes = 0; // written by this writeMetaData() so far, for Metrics
+
+    // With a journal, writeMetaData() commits the ranges there and they're written in place at the next checkpoint.
+    // Without one (fs.journal=false) they're written in place right away.
+    private MetadataJournal journal;
+    private final BitSet checkpointDirty = new BitSet(); // metadata blocks changed since the last checkpoint
+    private Checkpoint checkpoint; // taken under metaLock, waiting for awaitDurable() to write it out
+
+    public FileSystemManager(String filename, int totalSize) throws Exception {
+        this(filename, DiskGeometry.forSize(totalSize));
+    }
 
-    public FileSystemManager(String filename, int totalSize) throws Exception { // Could not do a
+    // The geometry is only used to format a new image, an existing one keeps the geometry in its superblock
+    public FileSystemManager(String filename, DiskGeometry requested) throws Exception {
+        this(filename, requested, new MountOptions());
+    }
+
+    public FileSystemManager(String filename, DiskGeometry requested, MountOptions options) throws Exception {
         synchronized (instanceLock) {
-            if (instance != null) {
-                throw new IllegalStateException("FileSystemManager already initialized");
+            imagePath = new File(filename).getCanonicalPath();
+            if (!mountedImages.add(imagePath)) {
+                throw new IllegalStateException("Image " + filename + " is already mounted");
             }
-            instance = this;
-            disk = new RandomAccessFile(filename, "rw");
-            disk.setLength(totalSize);
+            // Whatever got opened is closed again if the mount fails, so the image can be mounted later
+            RandomAccessFile file = null;
+            MetadataJournal log = null;
+            try {
+                file = new RandomAccessFile(filename, "rw");
+
+                DiskGeometry mounted = readSuperblock(file);
+                geometry = (mounted != null) ? mounted : requested;
+                BLOCK_SIZE = geometry.getBlockSize();
+                MAXFILES = geometry.getMaxFiles();
+                MAXBLOCKS = geometry.getMaxBlocks();
+                zeroBlock = new byte[BLOCK_SIZE];
+                scrubMode = options.getScrubMode();
+                compress = options.isCompressed() && geometry.isCompressible();
+                if (options.isCompressed() && !compress) {
+                    Log.FS.warn("Disk format v{} can't hold compressed files, they're stored as is.",
+                            geometry.getFormatVersion());
+                }
 
-            //Populating the arrays
-            fEntryTable = new FEntry[MAXFILES];
-            fNodeTable = new FNode[MAXBLOCKS];
-            freeBlockList = new boolean[MAXBLOCKS];
+                file.setLength(geometry.getTotalSize());
+
+                // Hot blocks are served from memory. Writes go through the cache, so it stays coherent
+                // with everything that writes to the disk: file writes, the scrubber, the metadata.
+                BlockDevice device = new MeteredBlockDevice(openDevice(file, options), BLOCK_SIZE);
+                long cacheBlocks = Math.min(options.getCacheSize() / BLOCK_SIZE,
+                        MAXBLOCKS - geometry.getMetadataBlocks());
+                if (cacheBlocks > 0) {
+                    blockCache = new CachedBlockDevice(device, BLOCK_SIZE, (int) cacheBlocks,
+                            geometry.getMetadataBlocks());
+                    device = blockCache;
+                } else {
+                    blockCache = null;
+                }
+                disk = device;
 
-            for (int i = 0; i < MAXBLOCKS; i++) {
-                fNodeTable[i] = new FNode(i);
-                freeBlockList[i] = true;
-            }
-            freeBlockList[0] = false; // first block for Metadata
+                for (int i = 0; i < LOCK_STRIPES; i++) {
+                    fileLocks[i] = new ReentrantLock();
+                }
 
-            if (disk.length() > 0) {
-                readMetaData();
-            } else {
-                writeMetaData();
+                //Populating the arrays
+                fEntryTable = new FEntry[MAXFILES];
+                nameIndex = new FileNameIndex(fEntryTable);
+                freeEntrySlots = new int[MAXFILES];
+                fNodeTable = new FNode[MAXBLOCKS];
+                freeBlocks = new BlockBitmap(MAXBLOCKS);
+                if (geometry.isDeduplicated()) {
+                    freeNodes = new BlockBitmap(MAXBLOCKS);
+                    blockRefs = new int[MAXBLOCKS];
+                    blockHashes = new long[MAXBLOCKS];
+                    hashIndex = new BlockHashIndex(MAXBLOCKS);
+                }
+
+                for (int i = 0; i < MAXBLOCKS; i++) {
+                    fNodeTable[i] = new FNode(i);
+                }
+                // first blocks for Metadata
+                freeBlocks.free(geometry.getMetadataBlocks(), MAXBLOCKS - geometry.getMetadataBlocks());
+
+                log = options.isJournaled() ? new MetadataJournal(filename + ".journal", disk) : null;
+                if (mounted != null) {
+                    // Finish whatever was committed before the last crash
+                    if (log != null) {
+                        int replayed = log.replay(geometry.metadataSize());
+                        if (replayed > 0) {
+                            Log.FS.info("Replayed {} metadata journal transaction(s).", replayed);
+                        }
+                    }
+                    readMetaData();
+                } else {
+                    // New image, everything gets written once, in place.
+                    // A journal left from an older image goes first.
+                    if (log != null) {
+                        log.reset();
+                    }
+                    metaImage = ByteBuffer.allocate(geometry.metadataSize());
+                    geometry.writeSuperblock(metaImage);
+                    flushRange(0, DiskGeometry.SUPERBLOCK_SIZE);
+                    dirtyEntries.set(0, MAXFILES);
+                    dirtyNodes.set(0, MAXBLOCKS);
+                    if (blockHashes != null) {
+                        dirtyHashes.set(0, MAXBLOCKS);
+                    }
+                    writeMetaData();
+                    disk.force();
+                }
+                journal = log;
+                rebuildIndex();
+                if (blockRefs != null) {
+                    rebuildDedup();
+                }
+                if (mounted != null) {
+                    freeLostBlocks();
+                }
+
+                if (scrubMode == ScrubMode.BACKGROUND) {
+                    scrubber = new BlockScrubber(disk, freeBlocks, metaLock, journal, BLOCK_SIZE);
+                    scrubber.start();
+                }
+            } catch (Exception | Error e) {
+                closeAfterFailure(log, e);
+                closeAfterFailure(file, e);
+                mountedImages.remove(imagePath);
+                throw e;
             }
         }
     }
 
-    public void createFile(String fileName) throws Exception {
-        System.out.println("[Lock] Thread " + Thread.currentThread().getName()
-                + "Waiting for write lock on " + fileName);
-        rwLock.writeLock().lock();
-        System.out.println("[Lock] Thread " + Thread.currentThread().getName()
-                + "Acquired for write lock on " + fileName);
+    private static void closeAfterFailure(Closeable closeable, Throwable failure) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            failure.addSuppressed(e);
+        }
+    }
 
+    // Unmounts the image: stops the scrubber, writes out the metadata still in the journal and closes
+    // the files, after which the image can be mounted again. Call once nothing else is using this manager
+    public void close() throws Exception {
         try {
-            for (FEntry entry : fEntryTable) {
-                if (entry != null && fileName.equalsIgnoreCase(entry.getFilename())) {
-                    throw new Exception("File \"" + fileName + "\" already exists.");
+            if (scrubber != null) {
+                scrubber.stop();
+            }
+            if (journal != null) {
+                journal.awaitDurable(journal.appendedLsn());
+                writeCheckpoint();
+            }
+            disk.force();
+        } finally {
+            try {
+                if (journal != null) {
+                    journal.close();
+                }
+            } finally {
+                try {
+                    disk.close();
+                } finally {
+                    synchronized (instanceLock) {
+                        mountedImages.remove(imagePath);
+                    }
                 }
             }
+        }
+    }
 
-            for (int i = 0; i < fEntryTable.length; i++) {
-                if (fEntryTable[i] == null) {
-                    // Casting the numbers because the compiler is screaming at me :(
-                    FEntry file = new FEntry(fileName, 0, -1);
-                    fEntryTable[i] = file;
+    public DiskGeometry getGeometry() {
+        return geometry;
+    }
 
-                    System.out.println("File \"" + fileName + "\" was created.");
-                    return;
-                }
-            }
+    // The block cache with its hit/miss/eviction counters, null if it's turned off
+    public CachedBlockDevice getBlockCache() {
+        return blockCache;
+    }
 
-            throw new Exception("Max file limit reached. File creation aborted...");
+    public int freeBlockCount() {
+        metaLock.lock();
+        try {
+            return freeBlocks.freeCount();
+        } finally {
+            metaLock.unlock();
+        }
+    }
 
+    // Blocks files let go of that are still waiting for readers of the old version
+    public int retiredBlockCount() {
+        metaLock.lock();
+        try {
+            return epochs.retiredBlocks();
         } finally {
-            writeMetaData();
+            metaLock.unlock();
+        }
+    }
 
-            System.out.println("[Lock] Thread " + Thread.currentThread().getName()
-                    + "Releasing write lock on " + fileName);
-            rwLock.writeLock().unlock();
+    public void createFile(String fileName) throws Exception {
+        ReentrantLock fileLock = lockFor(fileName);
+        long locked = lockWrite(fileLock, fileName);
+
+        long lsn;
+        try {
+            metaLock.lock();
+            try {
+                addEntry(fileName);
+            } finally {
+                lsn = writeMetaData();
+                metaLock.unlock();
+            }
+
+        } finally {
+            unlockWrite(fileLock, fileName, locked);
         }
+        awaitDurable(lsn);
     }
 
     public void writeFile(String fileName, byte[] contents) throws Exception {
-        System.out.println("[Lock] Thread " + Thread.currentThread().getName()
-                + " Waiting for Write lock on " + fileName);
-        rwLock.writeLock().lock();
-        System.out.println("[Lock] Thread " + Thread.currentThread().getName()
-                + "Acquired Write lock on " + fileName);
-                
-        try {
-            FEntry file = null;
+        writeFile(fileName, new ByteArrayInputStream(contents), contents.length);
+    }
 
-            // Get the entry if its there
-            for (FEntry entry : fEntryTable) {
-                if (entry != null && entry.getFilename().equalsIgnoreCase(fileName)) {
-                    file = entry;
+    // Replaces the file with the next length bytes of in, copied a chunk at a time
+    public void writeFile(String fileName, InputStream in, int length) throws Exception {
+        if (length < 0) {
+            throw new Exception("Invalid length: " + length);
+        }
+
+        FileWriteChannel channel = openWrite(fileName, length);
+        try {
+            byte[] chunk = new byte[Math.min(chunkSize(), length)];
+            ByteBuffer buffer = ByteBuffer.wrap(chunk);
+            for (int remaining = length; remaining > 0; ) {
+                int n = Math.min(chunk.length, remaining);
+                if (in.readNBytes(chunk, 0, n) != n) {
+                    throw new EOFException("Data ended before " + length + " bytes");
                 }
+                channel.write(buffer.clear().limit(n));
+                remaining -= n;
             }
+        } catch (Exception e) {
+            channel.abort();
+            throw e;
+        }
+        channel.close();
+    }
 
-            if (file == null) {
+    // Opens the file for streaming writes, its contents are replaced by what was written once the channel
+    // is closed. The channel holds the file's write lock: close it when done, on the thread that opened it.
+    public WritableByteChannel openWrite(String fileName) throws Exception {
+        return openWrite(fileName, 0);
+    }
+
+    // expectedSize bytes worth of blocks are reserved up front, in one run if there is one.
+    // Deduplicated images reserve as they go instead, most blocks may turn out to be there already.
+    private FileWriteChannel openWrite(String fileName, int expectedSize) throws Exception {
+        ReentrantLock fileLock = lockFor(fileName);
+        long locked = lockWrite(fileLock, fileName);
+
+        try {
+            return newWriteChannel(fileName, fileLock, locked, expectedSize, compress);
+        } catch (Exception e) {
+            unlockWrite(fileLock, fileName, locked);
+            throw e;
+        }
+    }
+
+    // The size of a compressed file isn't known up front either, its blocks are reserved as it goes
+    private FileWriteChannel newWriteChannel(String fileName, ReentrantLock fileLock, long locked, int expectedSize,
+            boolean compressed) throws Exception {
+        if (blockHashes != null) {
+            return new DedupWriteChannel(fileName, fileLock, locked, compressed);
+        }
+        return new FileWriteChannel(fileName, fileLock, locked, compressed ? 0 : expectedSize, compressed);
+    }
+
+    public byte[] readFile(String fileName) throws Exception {
+        long start = System.nanoTime();
+        ExtentList extents;
+        int fileSize;
+        ReadEpochs.Epoch epoch = null;
+
+        // Take the current version of the file if its there. Writers publish new extents instead of
+        // changing these, and the blocks aren't reused until we leave the epoch.
+        metaLock.lock();
+        try {
+            int index = nameIndex.find(fileName);
+            if (index == -1) {
                 throw new Exception("File not found...");
             }
+            FEntry file = fEntryTable[index];
+            extents = extentsOf(file);
+            fileSize = (int) Math.min(file.getFilesize(), (long) extents.totalBlocks() * BLOCK_SIZE);
+            if (!file.isCompressed()) {
+                epoch = epochs.enter();
+            }
+        } finally {
+            metaLock.unlock();
+        }
+
+        if (epoch == null) {
+            // Compressed, it has to go through the inflater
+            return readFile(fileName, 0, Integer.MAX_VALUE);
+        }
 
-            // Collect all the old used blocks and sets all next to -1.
-            int block = file.getFirstBlock();
-            int numOldBlocks = 0;
-            ArrayList<Integer> usableBlockList = new ArrayList<>();
-            for (int i = block; i != -1;) {
-                int temp = i;
-                usableBlockList.add(i);
-                i = fNodeTable[i].getNext();
-                fNodeTable[temp].setNext(-1);
-                numOldBlocks++;
+        try {
+            // if a file is created but not written to for some reason
+            if (fileSize == 0) {
+                return new byte[0];
             }
 
-            // Collect all the free blocks and put it in the usable list
-            for (int i = 0; i < freeBlockList.length; i++) {
-                if (freeBlockList[i]) {
-                    usableBlockList.add(i);
-                }
+            // Set up to receive
+            byte[] data = new byte[fileSize];
+
+            // Start read, straight into data with one disk read per extent
+            int offset = 0;
+            for (int e = 0; e < extents.count() && offset < fileSize; e++) {
+                // Only parse actual data into data
+                int parseAmmount = (int) Math.min((long) extents.length(e) * BLOCK_SIZE, fileSize - offset);
+                disk.read((long) extents.start(e) * BLOCK_SIZE, data, offset, parseAmmount);
+                offset += parseAmmount;
             }
 
-            // Check if space is enougth
-            int numBlocks = (int) Math.ceil((double) contents.length / BLOCK_SIZE);
-            if (usableBlockList.size() < numBlocks) {
-                throw new Exception("Not enough free space. Aborting...");
+            return data;
+
+        } finally {
+            ReadEpochs.exit(epoch);
+            Metrics.READ_SNAPSHOT.recordSince(start);
+        }
+    }
+
+    // Copies the file into out a chunk at a time, so the whole file is never in memory.
+    // Writers don't wait for it, but the blocks it reads can't be reused until the last chunk is written.
+    public void readFile(String fileName, OutputStream out) throws Exception {
+        readFile(fileName, 0, Integer.MAX_VALUE, out);
+    }
+
+    // Up to length bytes starting at offset, fewer if the file ends first
+    public byte[] readFile(String fileName, int offset, int length) throws Exception {
+        try (RangeChannel channel = openReadChannel(fileName, offset, length)) {
+            ByteBuffer data = ByteBuffer.allocate(channel.remaining());
+            while (data.hasRemaining() && channel.read(data) != -1) {
+                // read() walks the extents, nothing else to do
             }
+            return data.array();
+        }
+    }
 
-            // clear old data blocks / the one we are going to use
-            int clearAmmount = Math.max(numOldBlocks, numBlocks);
-            for (int i = 0; i < clearAmmount; i++) {
-                writeBlock(usableBlockList.get(i), new byte[BLOCK_SIZE], 0, BLOCK_SIZE);
+    public void readFile(String fileName, int offset, int length, OutputStream out) throws Exception {
+        try (RangeChannel channel = openReadChannel(fileName, offset, length)) {
+            ByteBuffer chunk = ByteBuffer.allocate(Math.min(chunkSize(), Math.max(1, channel.remaining())));
+            while (channel.read(chunk.clear()) != -1) {
+                out.write(chunk.array(), 0, chunk.position());
             }
+        }
+    }
 
-            // Start writing blocks
-            int writeBlockRemaining = numBlocks;
-            try {
-                int i = 0;
-                int offset = 0;
-                while (writeBlockRemaining > 0) {
-                    int byteToWrite = Math.min(BLOCK_SIZE, contents.length - offset);
-                    writeBlock(usableBlockList.get(i), contents, offset, byteToWrite);
-                    offset += byteToWrite;
-                    writeBlockRemaining--;
-                    i++;
-                }
+    // Opens the file for streaming reads, the extents are walked as the data is read. The channel reads
+    // the file as it was when opened, whatever is written after. Close it when done: until then the
+    // blocks of that version can't be reused.
+    public RangeChannel openRead(String fileName) throws Exception {
+        return openReadChannel(fileName, 0, Integer.MAX_VALUE);
+    }
 
-            } catch (Exception e) {
-                throw e;
-            }
+    // Same, for the length bytes starting at offset
+    public RangeChannel openRead(String fileName, int offset, int length) throws Exception {
+        return openReadChannel(fileName, offset, length);
+    }
 
-            // Chain all the nodes together
-            for (int i = 0; i < numBlocks; i++) {
-                int currentNode = usableBlockList.get(i);
+    private RangeChannel openReadChannel(String fileName, int offset, int length) throws Exception {
+        if (offset < 0 || length < 0) {
+            throw new Exception("Invalid range: " + offset + " + " + length);
+        }
 
-                int nextNode = (i == numBlocks - 1) ? -1 : usableBlockList.get(i + 1);
-                fNodeTable[currentNode].setNext(nextNode);
-            }
+        long opened = System.nanoTime();
+        FEntry file;
+        ExtentList extents;
+        boolean compressed;
+        int[] chunkLengths;
+        long fileSize;
+        ReadEpochs.Epoch epoch;
 
-            // Setting the metadata
-            for (int i = 0; i < numBlocks; i++) {
-                freeBlockList[usableBlockList.get(i)] = false;
+        metaLock.lock();
+        try {
+            int index = nameIndex.find(fileName);
+            if (index == -1) {
+                throw new Exception("File not found...");
             }
+            file = fEntryTable[index];
+            extents = extentsOf(file);
+            compressed = file.isCompressed();
+            chunkLengths = file.getChunkLengths();
+            fileSize = compressed ? file.getFilesize()
+                    : Math.min(file.getFilesize(), (long) extents.totalBlocks() * BLOCK_SIZE);
+            epoch = epochs.enter();
+        } finally {
+            metaLock.unlock();
+        }
 
-            for (int i = numBlocks; i < usableBlockList.size(); i++) {
-                freeBlockList[usableBlockList.get(i)] = true;
-                fNodeTable[usableBlockList.get(i)].setNext(-1);
+        if (!compressed) {
+            return new FileReadChannel(extents, fileSize, offset, length, epoch, opened);
+        }
+        try {
+            if (chunkLengths == null) {
+                chunkLengths = readChunkTable(extents, fileSize);
+                metaLock.lock();
+                try {
+                    if (file.getExtents() == extents) {
+                        file.setChunkLengths(chunkLengths);
+                    }
+                } finally {
+                    metaLock.unlock();
+                }
             }
+            return new CompressedReadChannel(extents, chunkLengths, fileSize, offset, length, epoch, opened);
+        } catch (IOException e) {
+            ReadEpochs.exit(epoch);
+            throw e;
+        }
+    }
 
-            file.setFirstBlock(usableBlockList.get(0));
-            file.setFilesize(contents.length);
-        } finally {
-            writeMetaData();
-            
-            System.out.println("[Lock] Thread " + Thread.currentThread().getName()
-                    + " Released write lock on " + fileName);
-            rwLock.writeLock().unlock();
+    public void appendFile(String fileName, byte[] data) throws Exception {
+        writeAt(fileName, -1, new ByteArrayInputStream(data), data.length);
+    }
+
+    public void appendFile(String fileName, InputStream in, int length) throws Exception {
+        writeAt(fileName, -1, in, length);
+    }
+
+    // Overwrites the file from offset on, growing it if the data goes past the end.
+    // Writing past the end leaves a hole of zeros between the old end and offset.
+    public void writeFileAt(String fileName, int offset, byte[] data) throws Exception {
+        writeFileAt(fileName, offset, new ByteArrayInputStream(data), data.length);
+    }
+
+    public void writeFileAt(String fileName, int offset, InputStream in, int length) throws Exception {
+        if (offset < 0) {
+            throw new Exception("Invalid offset: " + offset);
         }
+        writeAt(fileName, offset, in, length);
     }
 
-    public byte[] readFile(String fileName) throws Exception {
-        System.out.println("[Lock] Thread " + Thread.currentThread().getName()
-                + " Waiting for Read lock on " + fileName);
-        rwLock.readLock().lock();
-        System.out.println("[Lock] Thread " + Thread.currentThread().getName()
-                + "Acquired Read lock on " + fileName);
+    // Writes length bytes of in at offset, -1 meaning the end of the file. Only the blocks in that range
+    // are written, and new blocks are hung off the tail of the chain, so the cost follows the bytes written.
+    // Blocks holding old contents are copied instead of written over, a reader may be on them. The copies
+    // keep the old bytes around the range. Past the old end of the file nobody reads, that's written in place,
+    // unless the last block may be shared with other files (deduplicated images).
+    private void writeAt(String fileName, long offset, InputStream in, int length) throws Exception {
+        if (length < 0) {
+            throw new Exception("Invalid length: " + length);
+        }
+
+        ReentrantLock fileLock = lockFor(fileName);
+        long locked = lockWrite(fileLock, fileName);
 
+        long lsn;
+        ExtentList replaced = null; // old blocks the copies took over from
+        boolean zeroNow = false;
         try {
-            FEntry file = null;
+            if (isCompressed(fileName)) {
+                // Compressed files are only written whole, store this one as is before changing part of it
+                expand(fileName);
+            }
 
-            // Get the entry if its there
-            for (FEntry entry : fEntryTable) {
-                if (entry != null && entry.getFilename().equalsIgnoreCase(fileName)) {
-                    file = entry;
+            int index;
+            FEntry file;
+            ExtentList extents;
+            ExtentList grown;
+            int size;
+            long end;
+            int[] added = new int[0];
+            ExtentList addedExtents;
+            int[] copies = new int[0];
+            int firstCopy = 0; // file block the copies start at
+
+            metaLock.lock();
+            try {
+                index = nameIndex.find(fileName);
+                if (index == -1) {
+                    throw new Exception("File not found...");
                 }
-            }
+                file = fEntryTable[index];
+                extents = extentsOf(file);
+                size = file.getFilesize();
 
-            if (file == null) {
-                throw new Exception("File not found...");
-            }
+                if (offset == -1) {
+                    offset = size;
+                }
+                end = offset + length;
+                if (end > Integer.MAX_VALUE) {
+                    throw new Exception("File too large");
+                }
+                if (length == 0) {
+                    return;
+                }
+                reclaimBlocks();
+
+                // New blocks for the old contents the range covers, and whatever the file needs past its last block
+                int numBlocks = (int) ((Math.max(end, size) + BLOCK_SIZE - 1) / BLOCK_SIZE);
+                int numAdded = Math.max(0, numBlocks - extents.totalBlocks());
+                if (offset < size) {
+                    firstCopy = (int) (offset / BLOCK_SIZE);
+                    copies = new int[(int) ((Math.min(end, size) - 1) / BLOCK_SIZE) - firstCopy + 1];
+                } else if (blockRefs != null && offset < (long) extents.totalBlocks() * BLOCK_SIZE) {
+                    // The end of the last block is ours, unless the block is shared: other files, or other
+                    // places in this one, point at it too. A block only we have loses its hash, it's changing
+                    int last = extents.blockAt(extents.totalBlocks() - 1);
+                    if (blockRefs[last] > 1) {
+                        firstCopy = extents.totalBlocks() - 1;
+                        copies = new int[1];
+                    } else if (blockHashes[last] != 0) {
+                        hashIndex.remove(blockHashes[last], last);
+                        blockHashes[last] = 0;
+                        dirtyHashes.set(last);
+                    }
+                }
 
-            // if a file is created but not written to for some reason
-            if (file.getFirstBlock() == -1 || file.getFilesize() == 0) {
-                return new byte[0];
+                grown = extents;
+                if (copies.length > 0) {
+                    // The file gets moved around anyway, so take everything in one go, in one run if there is one
+                    int[] blocks = new int[copies.length + numAdded];
+                    if (!freeBlocks.allocate(blocks.length, blocks, 0)) {
+                        throw new Exception("Not enough free space. Aborting...");
+                    }
+                    copies = Arrays.copyOf(blocks, copies.length);
+                    added = Arrays.copyOfRange(blocks, copies.length, blocks.length);
+                    grown = replaceBlocks(extents, firstCopy, copies);
+                } else if (numAdded > 0) {
+                    added = new int[numAdded];
+                    reserveAfter(extents, added);
+                    grown = extents.copy();
+                }
+                addedExtents = ExtentList.fromBlocks(added, added.length);
+                for (int e = 0; e < addedExtents.count(); e++) {
+                    grown.add(addedExtents.start(e), addedExtents.length(e));
+                }
+
+                boolean relink = copies.length > 0;
+                if (!hasNodes(relink ? grown.count() : addedExtents.count(), relink ? file.getFirstBlock() : -1)) {
+                    for (int block : copies) {
+                        freeBlocks.setFree(block, true);
+                    }
+                    for (int block : added) {
+                        freeBlocks.setFree(block, true);
+                    }
+                    throw new Exception("Not enough free space. Aborting...");
+                }
+            } finally {
+                metaLock.unlock();
             }
 
-            // Set up to receive
-            int fileSize = file.getFilesize();
-            byte[] data = new byte[fileSize];
+            try {
+                // New blocks can hold anything, clear the parts the data won't cover so holes read as zeros
+                long oldEnd = (long) extents.totalBlocks() * BLOCK_SIZE;
+                if (added.length > 0) {
+                    zeroRange(grown, oldEnd, Math.max(oldEnd, offset));
+                    zeroRange(grown, Math.max(oldEnd, end), (long) grown.totalBlocks() * BLOCK_SIZE);
+                }
+                if (copies.length > 0) {
+                    copyRange(extents, grown, (long) firstCopy * BLOCK_SIZE, offset);
+                    copyRange(extents, grown, end, (long) (firstCopy + copies.length) * BLOCK_SIZE);
+                }
+                // Same for a hole inside the old last block, past the end of the file can hold anything too
+                if (offset > size) {
+                    zeroRange(grown, size, Math.min(offset, oldEnd));
+                }
 
-            // Start read
-            int block = file.getFirstBlock();
-            int offset = 0;
+                byte[] chunk = new byte[Math.min(chunkSize(), length)];
+                long position = offset;
+                while (position < end) {
+                    int n = (int) Math.min(chunk.length, end - position);
+                    if (in.readNBytes(chunk, 0, n) != n) {
+                        throw new EOFException("Data ended before " + length + " bytes");
+                    }
+                    writeRange(grown, position, chunk, 0, n);
+                    position += n;
+                }
 
-            while (block != -1 && offset < fileSize) {
-                byte[] buffer = new byte[BLOCK_SIZE];
-                disk.seek(block * BLOCK_SIZE);
-                disk.read(buffer, 0, BLOCK_SIZE);
+            } catch (Exception e) {
+                // Without copies the end of the old last block was written in place, don't leave this write's
+                // data there for a later write to turn into file contents
+                if (copies.length == 0 && size < (long) extents.totalBlocks() * BLOCK_SIZE) {
+                    try {
+                        zeroRange(extents, size, (long) extents.totalBlocks() * BLOCK_SIZE);
+                    } catch (IOException zeroing) {
+                        e.addSuppressed(zeroing);
+                    }
+                }
+                // Give back the blocks we reserved, the chain is left as it was
+                metaLock.lock();
+                try {
+                    for (int block : copies) {
+                        releaseBlocks(block, 1, false);
+                    }
+                    for (int block : added) {
+                        releaseBlocks(block, 1, false);
+                    }
+                } finally {
+                    metaLock.unlock();
+                }
+                throw e;
+            }
 
-                int parseAmmount = Math.min(BLOCK_SIZE, fileSize - offset);
-                System.arraycopy(buffer, 0, data, offset, parseAmmount); // Only parse actual data
-                                                                         // into data
+            metaLock.lock();
+            try {
+                int head = file.getFirstBlock();
+                if (copies.length > 0) {
+                    // The chain changes in the middle, link it again from the start
+                    replaced = blocksOf(extents, firstCopy, copies.length);
+                    unlinkExtents(head, extents);
+                    head = linkExtents(grown);
+                } else if (added.length > 0) {
+                    head = appendToChain(head, extents, added);
+                }
+                addRefs(ExtentList.fromBlocks(copies, copies.length));
+                addRefs(addedExtents);
+                file.setFirstBlock(head);
+                file.setExtents(grown);
+                file.setFilesize((int) Math.max(size, end));
+                dirtyEntries.set(index);
+                if (replaced != null) {
+                    replaced = dropRefs(replaced);
+                    zeroNow = retireBlocks(replaced, scrubMode == ScrubMode.IMMEDIATE);
+                }
 
-                block = fNodeTable[block].getNext();
-                offset += parseAmmount;
+            } finally {
+                lsn = writeMetaData();
+                metaLock.unlock();
             }
 
-            return data;
-
         } finally {
-            System.out.println("[Lock] Thread " + Thread.currentThread().getName()
-                    + " Released Read lock on " + fileName);
-            rwLock.readLock().unlock();
+            unlockWrite(fileLock, fileName, locked);
+        }
+        awaitDurable(lsn);
+        if (zeroNow) {
+            zeroRetired(replaced);
         }
     }
 
     public void deleteFile(String fileName) throws Exception {
-        rwLock.writeLock().lock();
+        deleteFile(fileName, false);
+    }
 
+    // secure zeroes the file's blocks before returning, whatever the scrub mode. If readers are still on them,
+    // they're zeroed when freed instead, once those are done and before anyone else gets them. Blocks other
+    // files still use (deduplicated images) stay as they are.
+    // Otherwise only the metadata is written here and the blocks are left to the ScrubMode.
+    public void deleteFile(String fileName, boolean secure) throws Exception {
+        ReentrantLock fileLock = lockFor(fileName);
+        long locked = lockWrite(fileLock, fileName);
+
+        long lsn;
+        ExtentList freed;
+        boolean zeroNow;
         try {
-            int index = -1;
-            FEntry toDelete = null;
-
-            for (int i = 0; i < fEntryTable.length; i++) {
-                FEntry entry = fEntryTable[i];
-
-                if (entry != null && entry.getFilename().equalsIgnoreCase(fileName)) {
-                    index = i;
-                    toDelete = entry;
-                    break;
+            metaLock.lock();
+            try {
+                int index = nameIndex.find(fileName);
+                if (index == -1) {
+                    throw new Exception("File not found...");
                 }
+                FEntry toDelete = fEntryTable[index];
+                ExtentList extents = extentsOf(toDelete);
+
+                unlinkExtents(toDelete.getFirstBlock(), extents);
+                toDelete.setFilesize(0);
+                toDelete.setFirstBlock(-1);
+                toDelete.setExtents(null);
+                nameIndex.remove(index);
+                fEntryTable[index] = null;
+                dirtyEntries.set(index);
+                freeEntrySlots[freeEntryCount++] = index;
+
+                // Readers that got the file before this still have its blocks
+                freed = dropRefs(extents);
+                zeroNow = retireBlocks(freed, secure || scrubMode == ScrubMode.IMMEDIATE);
+
+            } finally {
+                lsn = writeMetaData();
+                metaLock.unlock();
             }
 
-            if (toDelete == null) {
-                throw new Exception("File not found...");
-            }
-
-            int block = toDelete.getFirstBlock();
-            while (block != -1) {
-                freeBlockList[block] = true;
+        } finally {
+            unlockWrite(fileLock, fileName, locked);
+        }
+        awaitDurable(lsn);
+        if (zeroNow) {
+            zeroRetired(freed);
+        }
+    }
 
-                int nextBlock = fNodeTable[block].getNext();
+    // Runs a batch's creates and writes in order, holding the write locks of all their files once and
+    // flushing the metadata once (one journal commit) for the lot. Each write gets new blocks, and the last
+    // write of a file is the only one whose data goes to disk. Returns one result per operation, null if it worked.
+    // Batched writes aren't deduplicated, their blocks are only shared if a later write of the same data is.
+    public Exception[] runBatch(Batch batch) throws Exception {
+        int n = batch.size();
+        Exception[] results = new Exception[n];
+
+        // Stripes are locked in order so two batches can't deadlock
+        boolean[] stripes = new boolean[LOCK_STRIPES];
+        for (int i = 0; i < n; i++) {
+            stripes[stripeOf(batch.getFileName(i))] = true;
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            if (stripes[i]) {
+                fileLocks[i].lock();
+            }
+        }
+        long locked = System.nanoTime();
+        Metrics.WRITE_LOCK_WAIT.record(locked - start);
+        Log.LOCK.trace("Acquired write locks for a batch of {}", n);
+
+        int[][] newBlocks = new int[n][]; // for the last write of each file
+        int[] lastWrite = new int[MAXFILES]; // entry slot -> index of its last write in the batch
+        Arrays.fill(lastWrite, -1);
+        int[] slots = new int[n];
+        long lsn;
+        ExtentList replaced = new ExtentList(); // the old blocks of every file written
+        boolean zeroNow = false;
+        try {
+            metaLock.lock();
+            try {
+                reclaimBlocks();
+                for (int i = 0; i < n; i++) {
+                    try {
+                        if (batch.isCreate(i)) {
+                            addEntry(batch.getFileName(i));
+                        } else {
+                            slots[i] = nameIndex.find(batch.getFileName(i));
+                            if (slots[i] == -1) {
+                                throw new Exception("File not found...");
+                            }
+                            lastWrite[slots[i]] = i;
+                        }
+                    } catch (Exception e) {
+                        results[i] = e;
+                    }
+                }
 
-                fNodeTable[block].setNext(-1);
-                writeBlock(block, new byte[BLOCK_SIZE], 0, BLOCK_SIZE);
+                int nodes = 0; // taken by the writes so far, not counting the ones their old chains give back
+                for (int i = 0; i < n; i++) {
+                    if (!batch.isCreate(i) && results[i] == null && lastWrite[slots[i]] == i) {
+                        int[] blocks = new int[(batch.getContents(i).length + BLOCK_SIZE - 1) / BLOCK_SIZE];
+                        if (blocks.length > 0 && !freeBlocks.allocate(blocks.length, blocks, 0)) {
+                            results[i] = new Exception("Not enough free space. Aborting...");
+                            continue;
+                        }
+                        int needed = ExtentList.fromBlocks(blocks, blocks.length).count();
+                        if (!hasNodes(nodes + needed, fEntryTable[slots[i]].getFirstBlock())) {
+                            for (int block : blocks) {
+                                freeBlocks.setFree(block, true);
+                            }
+                            results[i] = new Exception("Not enough free space. Aborting...");
+                            continue;
+                        }
+                        nodes += needed;
+                        newBlocks[i] = blocks;
+                    }
+                }
+            } finally {
+                metaLock.unlock();
+            }
 
-                block = nextBlock;
+            try {
+                for (int i = 0; i < n; i++) {
+                    if (newBlocks[i] != null) {
+                        byte[] contents = batch.getContents(i);
+                        writeRange(ExtentList.fromBlocks(newBlocks[i], newBlocks[i].length), 0, contents, 0, contents.length);
+                        int tail = contents.length % BLOCK_SIZE;
+                        if (tail != 0) {
+                            disk.write((long) newBlocks[i][newBlocks[i].length - 1] * BLOCK_SIZE + tail, zeroBlock, 0,
+                                    BLOCK_SIZE - tail);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // None of the writes happen, the creates still do
+                metaLock.lock();
+                try {
+                    for (int i = 0; i < n; i++) {
+                        if (newBlocks[i] != null) {
+                            for (int block : newBlocks[i]) {
+                                releaseBlocks(block, 1, false);
+                            }
+                            newBlocks[i] = null;
+                        }
+                        if (!batch.isCreate(i) && results[i] == null) {
+                            results[i] = e;
+                        }
+                    }
+                } finally {
+                    metaLock.unlock();
+                }
             }
 
-            toDelete.setFilesize(0);
-            toDelete.setFirstBlock(-1);
-            fEntryTable[index] = null;
+            metaLock.lock();
+            try {
+                for (int i = 0; i < n; i++) {
+                    if (newBlocks[i] == null) {
+                        continue;
+                    }
+                    FEntry file = fEntryTable[slots[i]];
+                    ExtentList oldExtents = extentsOf(file);
+                    ExtentList newExtents = ExtentList.fromBlocks(newBlocks[i], newBlocks[i].length);
+                    unlinkExtents(file.getFirstBlock(), oldExtents);
+                    int head = linkExtents(newExtents);
+                    addRefs(newExtents);
+                    for (int e = 0; e < oldExtents.count(); e++) {
+                        replaced.add(oldExtents.start(e), oldExtents.length(e));
+                    }
+
+                    file.setFirstBlock(head);
+                    file.setFilesize(batch.getContents(i).length);
+                    file.setCompressed(false);
+                    file.setExtents(newExtents);
+                    dirtyEntries.set(slots[i]);
+                }
+                replaced = dropRefs(replaced);
+                zeroNow = retireBlocks(replaced, scrubMode == ScrubMode.IMMEDIATE);
+            } finally {
+                lsn = writeMetaData();
+                metaLock.unlock();
+            }
 
         } finally {
-            writeMetaData();
-            
-            rwLock.writeLock().unlock();
+            for (int i = LOCK_STRIPES - 1; i >= 0; i--) {
+                if (stripes[i]) {
+                    fileLocks[i].unlock();
+                }
+            }
+            Metrics.WRITE_LOCK_HOLD.record(System.nanoTime() - locked);
+            Log.LOCK.trace("Released write locks for a batch of {}", n);
+        }
+        awaitDurable(lsn);
+        if (zeroNow) {
+            zeroRetired(replaced);
+        }
+
+        // A write that was overwritten later in the batch ends up however the last one did
+        for (int i = 0; i < n; i++) {
+            if (!batch.isCreate(i) && results[i] == null && lastWrite[slots[i]] != i) {
+                results[i] = results[lastWrite[slots[i]]];
+            }
         }
+        return results;
     }
 
     public String[] listFiles() throws Exception {
-        rwLock.readLock().lock();
+        metaLock.lock();
 
         try {
             ArrayList<String> fileList = new ArrayList<>();
@@ -298,70 +951,1504 @@ public class FileSystemManager {
             return fileList.toArray(new String[0]);
 
         } finally {
-            rwLock.readLock().unlock();
+            metaLock.unlock();
         }
     }
 
-    private void writeBlock(int block, byte[] content, int offset, int size) throws Exception {
-        disk.seek(block * BLOCK_SIZE);
-        disk.write(content, offset, size);
+    // Stream buffer size, whole blocks so chunks line up with the extents
+    private int chunkSize() {
+        return Math.max(BLOCK_SIZE, STREAM_CHUNK - STREAM_CHUNK % BLOCK_SIZE);
     }
 
-    private void readMetaData() throws Exception {
-        disk.seek(0);
-
-        // Fentry
-        for (int i = 0; i < MAXFILES; i++) {
-            byte[] nameByte = new byte[11];
-            disk.read(nameByte);
-            String name = new String(nameByte).trim();
+    private boolean isCompressed(String fileName) {
+        metaLock.lock();
+        try {
+            int index = nameIndex.find(fileName);
+            return index != -1 && fEntryTable[index].isCompressed();
+        } finally {
+            metaLock.unlock();
+        }
+    }
 
-            int size = disk.readInt();
-            int firstBlock = disk.readInt();
+    // Stores a compressed file uncompressed, so a write can change the blocks holding the bytes it's after.
+    // Caller holds the file's write lock and keeps it
+    private void expand(String fileName) throws Exception {
+        FileWriteChannel out = newWriteChannel(fileName, null, 0, 0, false);
+        try (RangeChannel in = openRead(fileName)) {
+            ByteBuffer buffer = ByteBuffer.allocate(chunkSize());
+            while (in.read(buffer.clear()) != -1) {
+                out.write(buffer.flip());
+            }
+        } catch (Exception e) {
+            out.abort();
+            throw e;
+        }
+        out.close();
+    }
 
-            if (!name.isEmpty()) {
-                fEntryTable[i] = new FEntry(name, size, firstBlock);
+    // A compressed file ends with its chunk table, the stored length of each chunk. Chunks start on a block
+    // boundary, a chunk as long as its data wasn't compressed. The table starts on one too.
+    private int[] readChunkTable(ExtentList extents, long fileSize) throws IOException {
+        int chunks = (int) ((fileSize + COMPRESS_CHUNK - 1) / COMPRESS_CHUNK);
+        int tableBlocks = (chunks * 4 + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        byte[] table = new byte[chunks * 4];
+        int tableBlock = extents.totalBlocks() - tableBlocks;
+        if (tableBlock < 0) {
+            throw new IOException("Compressed file is corrupted.");
+        }
+        readRange(extents, (long) tableBlock * BLOCK_SIZE, table, 0, table.length);
+
+        int[] lengths = new int[chunks];
+        long blocks = 0;
+        for (int c = 0; c < chunks; c++) {
+            lengths[c] = ByteBuffer.wrap(table).getInt(c * 4);
+            if (lengths[c] <= 0 || lengths[c] > Math.min(COMPRESS_CHUNK, fileSize - (long) c * COMPRESS_CHUNK)) {
+                throw new IOException("Compressed file is corrupted.");
             }
+            blocks += (lengths[c] + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        }
+        if (blocks != tableBlock) {
+            throw new IOException("Compressed file is corrupted.");
         }
+        return lengths;
+    }
 
-        // FNode
-        for (int i = 0; i < MAXBLOCKS; i++) {
-            int next = disk.readInt();
-            fNodeTable[i].setNext(next);
+    // Picks the lock stripe for a filename, ignoring case like the lookups do
+    private ReentrantLock lockFor(String fileName) {
+        return fileLocks[stripeOf(fileName)];
+    }
+
+    private int stripeOf(String fileName) {
+        return FileNameIndex.hash(fileName) & (LOCK_STRIPES - 1);
+    }
+
+    // File lock helpers: trace the lock and time how long it was waited for and held.
+    // lockWrite returns when the lock was acquired, unlockWrite needs it back
+
+    private static long lockWrite(ReentrantLock fileLock, String fileName) {
+        Log.LOCK.trace("Waiting for write lock on {}", fileName);
+        long start = System.nanoTime();
+        fileLock.lock();
+        long locked = System.nanoTime();
+        Metrics.WRITE_LOCK_WAIT.record(locked - start);
+        Log.LOCK.trace("Acquired write lock on {}", fileName);
+        return locked;
+    }
+
+    private static void unlockWrite(ReentrantLock fileLock, String fileName, long locked) {
+        long held = System.nanoTime() - locked;
+        fileLock.unlock();
+        Metrics.WRITE_LOCK_HOLD.record(held);
+        Log.LOCK.trace("Released write lock on {}", fileName);
+    }
+
+    // Adds an empty file. Must hold metaLock and the file's write lock
+    private void addEntry(String fileName) throws Exception {
+        if (nameIndex.find(fileName) != -1) {
+            throw new Exception("File \"" + fileName + "\" already exists.");
         }
 
-        // FreeBlock list
-        for (int i = 0; i < MAXBLOCKS; i++) {
-            freeBlockList[i] = disk.readBoolean();
+        if (freeEntryCount == 0) {
+            throw new Exception("Max file limit reached. File creation aborted...");
         }
+
+        // Casting the numbers because the compiler is screaming at me :(
+        FEntry file = new FEntry(fileName, 0, -1);
+        int slot = freeEntrySlots[--freeEntryCount];
+        fEntryTable[slot] = file;
+        dirtyEntries.set(slot);
+        nameIndex.put(slot);
+
+        Log.FS.debug("File \"{}\" was created.", fileName);
     }
 
-    private void writeMetaData() throws Exception {
-        disk.seek(0);
+    // Rebuilds the name index and the free slot stack from fEntryTable
+    private void rebuildIndex() {
+        nameIndex.rebuild();
 
-        // FEntry
-        for (int i = 0; i < MAXFILES; i++) {
-            FEntry entry = fEntryTable[i];
+        freeEntryCount = 0;
+        for (int i = fEntryTable.length - 1; i >= 0; i--) {
+            if (fEntryTable[i] == null) {
+                freeEntrySlots[freeEntryCount++] = i;
+            }
+        }
+    }
 
-            if (entry != null) {
-                byte[] nameBytes = new byte[11];
-                byte[] actual = entry.getFilename().getBytes();
-                System.arraycopy(actual, 0, nameBytes, 0, Math.min(actual.length, 11));
+    // Deduplicated images: works out which FNodes are taken and how many times each block is used from the
+    // files' chains, and indexes the saved hashes. Hashes of blocks nothing uses are dropped, those blocks
+    // are freed next. Only at mount, before anyone else uses the file system
+    private void rebuildDedup() throws IOException {
+        freeNodes.free(0, MAXBLOCKS);
+        for (FEntry file : fEntryTable) {
+            if (file == null) {
+                continue;
+            }
+            for (int node = file.getFirstBlock(); node != -1; node = fNodeTable[node].getNext()) {
+                freeNodes.setFree(node, false);
+                int start = fNodeTable[node].getStart();
+                for (int block = start; block < start + fNodeTable[node].getLength(); block++) {
+                    blockRefs[block]++;
+                }
+            }
+        }
+        freeNodes.clearDirty(); // never saved
 
-                disk.write(nameBytes);
-                disk.writeInt(entry.getFilesize());
-                disk.writeInt(entry.getFirstBlock());
+        for (int block = 0; block < MAXBLOCKS; block++) {
+            if (blockHashes[block] != 0 && (blockRefs[block] == 0 || !hashIndex.put(blockHashes[block], block))) {
+                blockHashes[block] = 0;
+                dirtyHashes.set(block);
             }
         }
+        if (!dirtyHashes.isEmpty()) {
+            awaitDurable(writeMetaData());
+        }
+    }
 
-        // FNode
-        for (int i = 0; i < MAXBLOCKS; i++) {
-            disk.writeInt(fNodeTable[i].getNext());
+    // Frees blocks that are marked used but no file points at: retired ones a crash kept from being
+    // freed, or ones reserved for a write that never finished. They could hold anything, so they're
+    // zeroed first. Only at mount, before anyone else uses the file system
+    private void freeLostBlocks() throws IOException {
+        BitSet referenced = new BitSet(MAXBLOCKS);
+        for (FEntry file : fEntryTable) {
+            if (file != null) {
+                ExtentList extents = extentsOf(file);
+                for (int e = 0; e < extents.count(); e++) {
+                    referenced.set(extents.start(e), extents.start(e) + extents.length(e));
+                }
+            }
         }
 
-        // Free block list
-        for (int i = 0; i < MAXBLOCKS; i++) {
-            disk.writeBoolean(freeBlockList[i]);
+        int lost = 0;
+        int block = freeBlocks.nextUsed(geometry.getMetadataBlocks(), MAXBLOCKS);
+        while (block < MAXBLOCKS) {
+            if (!referenced.get(block)) {
+                zeroBlocks(block, 1);
+                freeBlocks.setFree(block, true);
+                lost++;
+            }
+            block = freeBlocks.nextUsed(block + 1, MAXBLOCKS);
+        }
+
+        if (lost > 0) {
+            awaitDurable(writeMetaData());
+            Log.FS.info("Freed {} block(s) no file points at.", lost);
+        }
+    }
+
+    // Must hold metaLock. What's returned is never changed, writers publish a new list
+    private ExtentList extentsOf(FEntry file) {
+        ExtentList extents = file.getExtents();
+        if (extents == null) {
+            extents = ExtentList.fromChain(fNodeTable, file.getFirstBlock());
+            file.setExtents(extents);
+        }
+        return extents;
+    }
+
+    // Points the FNodes at the extents, one node per extent. Old images get one node per block.
+    // Returns the first node, for FEntry.firstBlock. Must hold metaLock, and check hasNodes() first
+    private int linkExtents(ExtentList extents) {
+        int head = -1;
+        int previous = -1;
+        for (int e = 0; e < extents.count(); e++) {
+            int runLength = geometry.hasExtents() ? extents.length(e) : 1;
+            for (int block = extents.start(e); block < extents.start(e) + extents.length(e); block += runLength) {
+                int node = nodeFor(block);
+                if (previous != -1) {
+                    fNodeTable[previous].setNext(node);
+                } else {
+                    head = node;
+                }
+                fNodeTable[node].setStart(block);
+                fNodeTable[node].setLength(runLength);
+                fNodeTable[node].setNext(-1);
+                dirtyNodes.set(node);
+                previous = node;
+            }
+        }
+        return head;
+    }
+
+    // Takes apart the chain starting at head, the file's extents are what it holds. Must hold metaLock
+    private void unlinkExtents(int head, ExtentList extents) {
+        if (geometry.hasExtents()) {
+            // Only the nodes on the chain carry anything, the blocks inside a run are already clear,
+            // so this is one node per run instead of one per block
+            int node = head;
+            while (node != -1) {
+                int next = fNodeTable[node].getNext();
+                fNodeTable[node].setNext(-1);
+                fNodeTable[node].setLength(0);
+                dirtyNodes.set(node);
+                if (freeNodes != null) {
+                    freeNodes.setFree(node, true);
+                }
+                node = next;
+            }
+            return;
+        }
+
+        for (int e = 0; e < extents.count(); e++) {
+            for (int block = extents.start(e); block < extents.start(e) + extents.length(e); block++) {
+                fNodeTable[block].setNext(-1);
+                fNodeTable[block].setLength(0);
+            }
+            dirtyNodes.set(extents.start(e), extents.start(e) + extents.length(e));
+        }
+    }
+
+    // The node for a run starting at block: the block's own, except in deduplicated images where it's
+    // any free one. Must hold metaLock
+    private int nodeFor(int block) {
+        if (freeNodes == null) {
+            return block;
+        }
+        int[] node = new int[1];
+        freeNodes.allocate(1, node, 0);
+        return node[0];
+    }
+
+    // Deduplicated images can run out of FNodes before blocks, a block that's in several files takes a node
+    // in each. True if needed nodes are free, counting the ones on the chain starting at oldHead that are about
+    // to be unlinked (-1 if none). Always true for other images. Must hold metaLock
+    private boolean hasNodes(int needed, int oldHead) {
+        if (freeNodes == null) {
+            return true;
+        }
+        for (int node = oldHead; node != -1; node = fNodeTable[node].getNext()) {
+            needed--;
+        }
+        return needed <= freeNodes.freeCount();
+    }
+
+    // Deduplicated images: each block of runs is used once more. Must hold metaLock
+    private void addRefs(ExtentList runs) {
+        if (blockRefs == null) {
+            return;
+        }
+        for (int e = 0; e < runs.count(); e++) {
+            for (int block = runs.start(e); block < runs.start(e) + runs.length(e); block++) {
+                blockRefs[block]++;
+            }
+        }
+    }
+
+    // The other way round, returns the blocks of runs nothing uses any more. In other images that's all of them.
+    // Those lose their hash so no new file picks them up, then they can be retired. Must hold metaLock
+    private ExtentList dropRefs(ExtentList runs) {
+        if (blockRefs == null) {
+            return runs;
+        }
+        ExtentList unused = new ExtentList();
+        for (int e = 0; e < runs.count(); e++) {
+            for (int block = runs.start(e); block < runs.start(e) + runs.length(e); block++) {
+                if (--blockRefs[block] > 0) {
+                    continue;
+                }
+                unused.add(block, 1);
+                if (blockHashes[block] != 0) {
+                    hashIndex.remove(blockHashes[block], block);
+                    blockHashes[block] = 0;
+                    dirtyHashes.set(block);
+                }
+            }
+        }
+        return unused;
+    }
+
+    // Fills blocks with free ones, starting right after the file's last block while those are free
+    // so the file stays in one run. Must hold metaLock
+    private void reserveAfter(ExtentList extents, int[] blocks) throws Exception {
+        if (blocks.length > freeBlocks.freeCount()) {
+            throw new Exception("Not enough free space. Aborting...");
+        }
+
+        int n = 0;
+        if (extents.count() > 0) {
+            int last = extents.count() - 1;
+            int next = extents.start(last) + extents.length(last);
+            while (n < blocks.length && next < MAXBLOCKS && freeBlocks.isFree(next)) {
+                freeBlocks.setFree(next, false);
+                blocks[n++] = next++;
+            }
+        }
+        if (n < blocks.length) {
+            freeBlocks.allocate(blocks.length - n, blocks, n);
+        }
+    }
+
+    // Hangs new blocks off the end of a file's chain starting at head, returns the new head (it only changes
+    // if the file had no blocks). Only the old tail node and the new nodes change, a run that continues the
+    // tail extent just makes it longer. Must hold metaLock, and check hasNodes() first
+    private int appendToChain(int head, ExtentList extents, int[] blocks) {
+        int tail = -1;
+        if (extents.count() > 0) {
+            int last = extents.count() - 1;
+            if (geometry.hasExtents()) {
+                // The last run can be several nodes that happen to touch, follow them to the real tail
+                tail = head;
+                while (fNodeTable[tail].getNext() != -1) {
+                    tail = fNodeTable[tail].getNext();
+                }
+            } else {
+                tail = extents.start(last) + extents.length(last) - 1;
+            }
+        }
+
+        ExtentList added = ExtentList.fromBlocks(blocks, blocks.length);
+        for (int e = 0; e < added.count(); e++) {
+            if (geometry.hasExtents() && tail != -1
+                    && fNodeTable[tail].getStart() + fNodeTable[tail].getLength() == added.start(e)) {
+                fNodeTable[tail].setLength(fNodeTable[tail].getLength() + added.length(e));
+                dirtyNodes.set(tail);
+                continue;
+            }
+
+            int runLength = geometry.hasExtents() ? added.length(e) : 1;
+            for (int block = added.start(e); block < added.start(e) + added.length(e); block += runLength) {
+                int node = nodeFor(block);
+                if (tail != -1) {
+                    fNodeTable[tail].setNext(node);
+                    dirtyNodes.set(tail);
+                } else {
+                    head = node;
+                }
+                fNodeTable[node].setStart(block);
+                fNodeTable[node].setLength(runLength);
+                fNodeTable[node].setNext(-1);
+                dirtyNodes.set(node);
+                tail = node;
+            }
+        }
+        return head;
+    }
+
+    // Writes length bytes of src at a byte offset of the file, one disk write per extent it crosses
+    private void writeRange(ExtentList extents, long fileOffset, byte[] src, int offset, int length) throws IOException {
+        while (length > 0) {
+            int extent = extents.find((int) (fileOffset / BLOCK_SIZE));
+            long extentStart = (long) extents.fileBlock(extent) * BLOCK_SIZE;
+            long extentEnd = extentStart + (long) extents.length(extent) * BLOCK_SIZE;
+            int n = (int) Math.min(length, extentEnd - fileOffset);
+            disk.write((long) extents.start(extent) * BLOCK_SIZE + (fileOffset - extentStart), src, offset, n);
+            fileOffset += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    // Reads length bytes at a byte offset of the file into dst, one disk read per extent it crosses
+    private void readRange(ExtentList extents, long fileOffset, byte[] dst, int offset, int length) throws IOException {
+        while (length > 0) {
+            int extent = extents.find((int) (fileOffset / BLOCK_SIZE));
+            long extentStart = (long) extents.fileBlock(extent) * BLOCK_SIZE;
+            long extentEnd = extentStart + (long) extents.length(extent) * BLOCK_SIZE;
+            int n = (int) Math.min(length, extentEnd - fileOffset);
+            disk.read((long) extents.start(extent) * BLOCK_SIZE + (fileOffset - extentStart), dst, offset, n);
+            fileOffset += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    // Copies the bytes from..to of the file from one version of its blocks to another
+    private void copyRange(ExtentList from, ExtentList to, long start, long stop) throws IOException {
+        byte[] block = new byte[BLOCK_SIZE];
+        while (start < stop) {
+            int n = (int) Math.min(BLOCK_SIZE, stop - start);
+            readRange(from, start, block, 0, n);
+            writeRange(to, start, block, 0, n);
+            start += n;
+        }
+    }
+
+    private void zeroRange(ExtentList extents, long from, long to) throws IOException {
+        while (from < to) {
+            int n = (int) Math.min(BLOCK_SIZE, to - from);
+            writeRange(extents, from, zeroBlock, 0, n);
+            from += n;
+        }
+    }
+
+    // Marks blocks free. Unless they were zeroed already, the background scrubber gets them.
+    // Must hold metaLock
+    private void releaseBlocks(int start, int length, boolean zeroed) {
+        freeBlocks.free(start, length);
+        if (!zeroed && scrubber != null) {
+            scrubber.add(start, length);
+        }
+    }
+
+    // Must still own the blocks
+    private void zeroBlocks(int start, int length) throws IOException {
+        for (int block = start; block < start + length; block++) {
+            disk.write((long) block * BLOCK_SIZE, zeroBlock, 0, BLOCK_SIZE);
+        }
+    }
+
+    // Gives up runs of blocks no file points at any more, in the metaLock hold that unlinked them. Readers
+    // with the old version may still be reading them, so they're only freed once those are done (ReadEpochs).
+    // Blocks that have to be zeroed first are zeroed as they're freed. Returns true if no reader can see them
+    // and they're to be zeroed: then they're left to the caller, pass them to zeroRetired() after letting
+    // go of the locks. Must hold metaLock
+    private boolean retireBlocks(ExtentList runs, boolean zero) {
+        if (runs.count() == 0) {
+            return false;
+        }
+        boolean zeroNow = zero && !epochs.hasReaders();
+        if (!zeroNow) {
+            for (int e = 0; e < runs.count(); e++) {
+                epochs.retire(runs.start(e), runs.length(e), zero);
+            }
+        }
+        epochs.advance();
+        reclaimBlocks();
+        return zeroNow;
+    }
+
+    // Frees the retired blocks no reader can see any more. Ones waiting to be zeroed are zeroed here,
+    // under metaLock, but that only happens to blocks a reader was still on when they were retired.
+    // Must hold metaLock
+    private void reclaimBlocks() {
+        for (int[] run : epochs.reclaim()) {
+            if (run[2] == 0) {
+                releaseBlocks(run[0], run[1], false);
+                continue;
+            }
+            try {
+                zeroBlocks(run[0], run[1]);
+                releaseBlocks(run[0], run[1], true);
+            } catch (IOException e) {
+                // Left used, the next mount zeroes and frees them
+                Log.FS.error("Scrubbing freed blocks failed: {}", e.getMessage());
+            }
+        }
+    }
+
+    // Zeroes and frees runs retireBlocks() left to the caller. Call without metaLock.
+    // If it fails the blocks stay used until the next mount frees them.
+    private void zeroRetired(ExtentList runs) throws IOException {
+        for (int e = 0; e < runs.count(); e++) {
+            zeroBlocks(runs.start(e), runs.length(e));
+        }
+
+        long lsn;
+        metaLock.lock();
+        try {
+            for (int e = 0; e < runs.count(); e++) {
+                releaseBlocks(runs.start(e), runs.length(e), true);
+            }
+        } finally {
+            lsn = writeMetaData();
+            metaLock.unlock();
+        }
+        awaitDurable(lsn);
+    }
+
+    // A copy of extents with the file blocks from fileBlock on swapped for blocks
+    private static ExtentList replaceBlocks(ExtentList extents, int fileBlock, int[] blocks) {
+        ExtentList replaced = new ExtentList();
+        int stop = fileBlock + blocks.length;
+        for (int e = 0; e < extents.count(); e++) {
+            int first = extents.fileBlock(e);
+            int last = first + extents.length(e);
+            if (first < fileBlock) {
+                replaced.add(extents.start(e), Math.min(last, fileBlock) - first);
+            }
+            if (first <= fileBlock && fileBlock < last) {
+                for (int block : blocks) {
+                    replaced.add(block, 1);
+                }
+            }
+            if (last > stop) {
+                int from = Math.max(first, stop);
+                replaced.add(extents.start(e) + (from - first), last - from);
+            }
+        }
+        return replaced;
+    }
+
+    // The disk blocks behind count blocks of the file starting at fileBlock, as runs
+    private static ExtentList blocksOf(ExtentList extents, int fileBlock, int count) {
+        ExtentList runs = new ExtentList();
+        for (int e = extents.find(fileBlock); count > 0; e++) {
+            int skip = fileBlock - extents.fileBlock(e);
+            int n = Math.min(count, extents.length(e) - skip);
+            runs.add(extents.start(e) + skip, n);
+            fileBlock += n;
+            count -= n;
+        }
+        return runs;
+    }
+
+    // Memory mapping falls back to positional FileChannel I/O if the image can't be mapped
+    private static BlockDevice openDevice(RandomAccessFile file, MountOptions options) throws Exception {
+        if (options.isMemoryMapped()) {
+            try {
+                return new MappedBlockDevice(file, file.length());
+            } catch (IOException | UnsupportedOperationException e) {
+                Log.FS.warn("Could not memory map the disk, using FileChannel: {}", e.getMessage());
+            }
+        }
+        return new FileChannelDevice(file);
+    }
+
+    // Returns the geometry saved in the superblock, or null if the image was never formatted
+    private static DiskGeometry readSuperblock(RandomAccessFile file) throws Exception {
+        if (file.length() < DiskGeometry.SUPERBLOCK_SIZE) {
+            return null;
+        }
+
+        byte[] superblock = new byte[DiskGeometry.SUPERBLOCK_SIZE];
+        file.seek(0);
+        file.readFully(superblock);
+        return DiskGeometry.readSuperblock(ByteBuffer.wrap(superblock));
+    }
+
+    // The metadata can span many blocks, so it is read and written in one go instead of field by field
+    private void readMetaData() throws Exception {
+        byte[] metadata = new byte[geometry.metadataSize()];
+        disk.read(0, metadata, 0, metadata.length);
+        ByteBuffer buffer = ByteBuffer.wrap(metadata);
+        metaImage = ByteBuffer.wrap(metadata); // what's on disk right now, nothing dirty
+
+        // Fentry
+        buffer.position(geometry.entryTableOffset());
+        for (int i = 0; i < MAXFILES; i++) {
+            byte[] nameByte = new byte[DiskGeometry.NAME_BYTES];
+            buffer.get(nameByte);
+            String name = new String(nameByte).trim();
+
+            int size = buffer.getInt();
+            int firstBlock = buffer.getInt();
+            int flags = geometry.isCompressible() ? buffer.getInt() : 0;
+
+            if (!name.isEmpty()) {
+                fEntryTable[i] = new FEntry(name, size, firstBlock);
+                fEntryTable[i].setCompressed((flags & DiskGeometry.ENTRY_COMPRESSED) != 0);
+            }
+        }
+
+        // FNode
+        for (int i = 0; i < MAXBLOCKS; i++) {
+            int next = buffer.getInt();
+            fNodeTable[i].setNext(next);
+            fNodeTable[i].setLength(geometry.hasExtents() ? buffer.getInt() : 1);
+            if (geometry.isDeduplicated()) {
+                fNodeTable[i].setStart(buffer.getInt());
+            }
+        }
+
+        // FreeBlock list
+        if (geometry.getFormatVersion() == 1) {
+            for (int i = 0; i < MAXBLOCKS; i++) {
+                freeBlocks.setFree(i, buffer.get() != 0);
+            }
+        } else {
+            for (int i = 0; i < freeBlocks.wordCount(); i++) {
+                freeBlocks.setWord(i, buffer.getLong());
+            }
+        }
+        freeBlocks.clearDirty();
+
+        // Block hashes, indexed by rebuildDedup()
+        if (blockHashes != null) {
+            buffer.position(geometry.hashTableOffset());
+            for (int i = 0; i < MAXBLOCKS; i++) {
+                blockHashes[i] = buffer.getLong();
+            }
+        }
+    }
+
+    // Writes back only the FEntry slots, FNodes, bitmap words and block hashes that changed since the last call.
+    // Nearby changes are merged so a flush is a handful of writes, and nothing is written if nothing changed.
+    // With a journal they make up one transaction: pass the returned LSN to awaitDurable() once metaLock is let go.
+    // Must hold metaLock
+    private long writeMetaData() throws IOException {
+        // FEntry
+        for (int i = dirtyEntries.nextSetBit(0); i >= 0; i = dirtyEntries.nextSetBit(i + 1)) {
+            int offset = geometry.entryTableOffset() + i * geometry.entrySize();
+            FEntry entry = fEntryTable[i];
+
+            byte[] nameBytes = new byte[DiskGeometry.NAME_BYTES];
+            if (entry != null) {
+                byte[] actual = entry.getFilename().getBytes();
+                System.arraycopy(actual, 0, nameBytes, 0, Math.min(actual.length, nameBytes.length));
+            }
+
+            // Empty slots are written too so the tables below stay at fixed offsets
+            metaImage.put(offset, nameBytes);
+            metaImage.putInt(offset + DiskGeometry.NAME_BYTES, entry == null ? 0 : entry.getFilesize());
+            metaImage.putInt(offset + DiskGeometry.NAME_BYTES + 4, entry == null ? -1 : entry.getFirstBlock());
+            if (geometry.isCompressible()) {
+                int flags = entry != null && entry.isCompressed() ? DiskGeometry.ENTRY_COMPRESSED : 0;
+                metaImage.putInt(offset + DiskGeometry.ENTRY_SIZE, flags);
+            }
+            flushRange(offset, offset + geometry.entrySize());
+        }
+        dirtyEntries.clear();
+
+        // FNode
+        for (int i = dirtyNodes.nextSetBit(0); i >= 0; i = dirtyNodes.nextSetBit(i + 1)) {
+            int offset = geometry.nodeTableOffset() + i * geometry.nodeSize();
+            metaImage.putInt(offset, fNodeTable[i].getNext());
+            if (geometry.hasExtents()) {
+                metaImage.putInt(offset + 4, fNodeTable[i].getLength());
+            }
+            if (geometry.isDeduplicated()) {
+                metaImage.putInt(offset + 8, fNodeTable[i].getStart());
+            }
+            flushRange(offset, offset + geometry.nodeSize());
+        }
+        dirtyNodes.clear();
+
+        // Free block list
+        for (int w = freeBlocks.nextDirtyWord(0); w >= 0; w = freeBlocks.nextDirtyWord(w + 1)) {
+            if (geometry.getFormatVersion() == 1) {
+                int offset = geometry.freeListOffset() + w * 64;
+                int end = Math.min(MAXBLOCKS, w * 64 + 64);
+                for (int i = w * 64; i < end; i++) {
+                    metaImage.put(geometry.freeListOffset() + i, (byte) (freeBlocks.isFree(i) ? 1 : 0));
+                }
+                flushRange(offset, geometry.freeListOffset() + end);
+            } else {
+                int offset = geometry.freeListOffset() + w * 8;
+                metaImage.putLong(offset, freeBlocks.getWord(w));
+                flushRange(offset, offset + 8);
+            }
+        }
+        freeBlocks.clearDirty();
+
+        // Block hashes
+        for (int i = dirtyHashes.nextSetBit(0); i >= 0; i = dirtyHashes.nextSetBit(i + 1)) {
+            int offset = geometry.hashTableOffset() + i * 8;
+            metaImage.putLong(offset, blockHashes[i]);
+            flushRange(offset, offset + 8);
+        }
+        dirtyHashes.clear();
+
+        flushRange(-1, -1);
+        if (flushedBytes > 0) {
+            Metrics.METADATA_FLUSHES.increment();
+            Metrics.METADATA_FLUSH_BYTES.add(flushedBytes);
+            flushedBytes = 0;
+        }
+        if (journal == null) {
+            return 0;
+        }
+        long lsn = journal.commit();
+        if (journal.needsCheckpoint()) {
+            startCheckpoint();
+        }
+        return lsn;
+    }
+
+    // Metadata blocks as they were when the journal was sealed, to be written in place
+    private static final class Checkpoint {
+        private final long sealedLsn;
+        private final ArrayList<Integer> offsets = new ArrayList<>();
+        private final ArrayList<byte[]> contents = new ArrayList<>(); // what goes at each offset
+
+        private Checkpoint(long sealedLsn) {
+            this.sealedLsn = sealedLsn;
+        }
+    }
+
+    // Seals the journal and copies the metadata it changed since the last checkpoint. The slow part, writing
+    // that in place and forcing the image, is left to writeCheckpoint() once metaLock is let go, while new
+    // transactions go to the journal's other segment. Must hold metaLock
+    private void startCheckpoint() {
+        checkpoint = new Checkpoint(journal.rotate());
+        for (int b = checkpointDirty.nextSetBit(0); b >= 0; b = checkpointDirty.nextSetBit(b)) {
+            int end = checkpointDirty.nextClearBit(b);
+            int from = b * BLOCK_SIZE;
+            int to = Math.min(end * BLOCK_SIZE, metaImage.capacity());
+            checkpoint.offsets.add(from);
+            checkpoint.contents.add(Arrays.copyOfRange(metaImage.array(), from, to));
+            b = end;
+        }
+        checkpointDirty.clear();
+    }
+
+    // Writes out a checkpoint startCheckpoint() left, if there is one nobody took yet, and empties
+    // the sealed journal segment. Call without holding metaLock
+    private void writeCheckpoint() throws IOException {
+        Checkpoint taken;
+        metaLock.lock();
+        try {
+            taken = checkpoint;
+            checkpoint = null;
+        } finally {
+            metaLock.unlock();
+        }
+        if (taken == null) {
+            return;
+        }
+
+        try {
+            journal.awaitDurable(taken.sealedLsn);
+            for (int i = 0; i < taken.offsets.size(); i++) {
+                byte[] contents = taken.contents.get(i);
+                disk.write(taken.offsets.get(i), contents, 0, contents.length);
+            }
+            disk.force();
+            journal.finishCheckpoint();
+        } catch (IOException e) {
+            // Leave it for the next one to try again, the sealed segment still has all of it
+            metaLock.lock();
+            try {
+                checkpoint = taken;
+            } finally {
+                metaLock.unlock();
+            }
+            throw e;
+        }
+    }
+
+    // Returns once the metadata committed up to lsn is on disk. Call without holding metaLock,
+    // so other threads keep committing and share the next force(). Also does any checkpoint that's due
+    private void awaitDurable(long lsn) throws IOException {
+        if (journal != null) {
+            journal.awaitDurable(lsn);
+            writeCheckpoint();
+        }
+    }
+
+    // Queues a byte range of metaImage to be written, ranges come in increasing order.
+    // A range that isn't close to the queued one writes the queued one out first, (-1, -1) just writes it out.
+    private void flushRange(int start, int end) throws IOException {
+        if (start != -1 && flushStart != -1 && start <= flushEnd + FLUSH_GAP) {
+            flushEnd = Math.max(flushEnd, end);
+            return;
+        }
+
+        if (flushStart != -1) {
+            flushedBytes += flushEnd - flushStart;
+        }
+        if (flushStart != -1 && journal != null) {
+            journal.append(metaImage, flushStart, flushEnd);
+            checkpointDirty.set(flushStart / BLOCK_SIZE, (flushEnd - 1) / BLOCK_SIZE + 1);
+        } else if (flushStart != -1) {
+            disk.write(flushStart, metaImage.array(), flushStart, flushEnd - flushStart);
+        }
+        flushStart = start;
+        flushEnd = end;
+    }
+
+    // Streams a range of a file, walking its extents as the reads come in. It reads the version
+    // of the file that was there when it was opened, and keeps its blocks from being reused until closed.
+    private class FileReadChannel implements RangeChannel {
+        private final long opened;
+        private final ReadEpochs.Epoch epoch;
+        private final ExtentList extents;
+        private final long end; // where the range stops, never past the end of the file
+        private long position; // next byte of the file to read
+        private int extent; // extent holding position
+        private boolean open = true;
+
+        // Takes over the epoch the version was taken in
+        FileReadChannel(ExtentList extents, long fileSize, int offset, int length, ReadEpochs.Epoch epoch,
+                long opened) {
+            this.opened = opened;
+            this.epoch = epoch;
+            this.extents = extents;
+            position = Math.min(offset, fileSize);
+            end = Math.min(fileSize, (long) offset + length);
+            extent = position < end ? extents.find((int) (position / BLOCK_SIZE)) : 0;
+        }
+
+        @Override
+        public int remaining() {
+            return (int) (end - position);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+            if (position >= end) {
+                return -1;
+            }
+
+            int read = 0;
+            while (dst.hasRemaining() && position < end) {
+                long extentStart = (long) extents.fileBlock(extent) * BLOCK_SIZE;
+                long extentEnd = extentStart + (long) extents.length(extent) * BLOCK_SIZE;
+                if (position == extentEnd) {
+                    extent++;
+                    continue;
+                }
+
+                int n = (int) Math.min(dst.remaining(), Math.min(extentEnd, end) - position);
+                int limit = dst.limit();
+                dst.limit(dst.position() + n);
+                try {
+                    disk.read((long) extents.start(extent) * BLOCK_SIZE + (position - extentStart), dst);
+                } finally {
+                    dst.limit(limit);
+                }
+                position += n;
+                read += n;
+            }
+            return read;
+        }
+
+        @Override
+        public long transferTo(WritableByteChannel target) throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+
+            long sent = 0;
+            while (position < end) {
+                long extentStart = (long) extents.fileBlock(extent) * BLOCK_SIZE;
+                long extentEnd = extentStart + (long) extents.length(extent) * BLOCK_SIZE;
+                if (position == extentEnd) {
+                    extent++;
+                    continue;
+                }
+
+                long n = Math.min(extentEnd, end) - position;
+                disk.transferTo((long) extents.start(extent) * BLOCK_SIZE + (position - extentStart), n, target);
+                position += n;
+                sent += n;
+            }
+            return sent;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            if (open) {
+                open = false;
+                ReadEpochs.exit(epoch);
+                Metrics.READ_SNAPSHOT.recordSince(opened);
+            }
+        }
+    }
+
+    // Streams a range of a compressed file. Chunks are read and inflated as the reads get to them, the ones
+    // before the range are skipped with the chunk table. Nothing goes straight from the disk image here.
+    private class CompressedReadChannel implements RangeChannel {
+        private final long opened;
+        private final ReadEpochs.Epoch epoch;
+        private final ExtentList extents;
+        private final int[] chunkLengths; // stored bytes of each chunk
+        private final long[] chunkStarts; // byte of the stored file each chunk starts at
+        private final long fileSize;
+        private final long end;
+        private long position;
+        private final byte[] packed; // a chunk as stored
+        private final byte[] plain; // the chunk holding position, inflated
+        private int decoded = -1; // which chunk that is
+        private final Inflater inflater = new Inflater(true);
+        private boolean open = true;
+
+        CompressedReadChannel(ExtentList extents, int[] chunkLengths, long fileSize, int offset, int length,
+                ReadEpochs.Epoch epoch, long opened) {
+            this.opened = opened;
+            this.epoch = epoch;
+            this.extents = extents;
+            this.chunkLengths = chunkLengths;
+            this.fileSize = fileSize;
+            position = Math.min(offset, fileSize);
+            end = Math.min(fileSize, (long) offset + length);
+
+            chunkStarts = new long[chunkLengths.length];
+            long stored = 0;
+            for (int c = 0; c < chunkLengths.length; c++) {
+                chunkStarts[c] = stored;
+                stored += (long) (chunkLengths[c] + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+            }
+            packed = new byte[(int) Math.min(COMPRESS_CHUNK, fileSize)];
+            plain = new byte[packed.length];
+        }
+
+        @Override
+        public int remaining() {
+            return (int) (end - position);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+            if (position >= end) {
+                return -1;
+            }
+
+            int read = 0;
+            while (dst.hasRemaining() && position < end) {
+                int n = inflateAt(dst.remaining());
+                dst.put(plain, (int) (position % COMPRESS_CHUNK), n);
+                position += n;
+                read += n;
+            }
+            return read;
+        }
+
+        @Override
+        public long transferTo(WritableByteChannel target) throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+
+            long sent = 0;
+            while (position < end) {
+                int n = inflateAt(Integer.MAX_VALUE);
+                ByteBuffer chunk = ByteBuffer.wrap(plain, (int) (position % COMPRESS_CHUNK), n);
+                while (chunk.hasRemaining()) {
+                    target.write(chunk);
+                }
+                position += n;
+                sent += n;
+            }
+            return sent;
+        }
+
+        // Gets the chunk holding position into plain, returns how much of it can be taken from there, up to max
+        private int inflateAt(int max) throws IOException {
+            int chunk = (int) (position / COMPRESS_CHUNK);
+            int plainLength = (int) Math.min(COMPRESS_CHUNK, fileSize - (long) chunk * COMPRESS_CHUNK);
+            if (chunk != decoded) {
+                decoded = -1;
+                int stored = chunkLengths[chunk];
+                if (stored == plainLength) {
+                    readRange(extents, chunkStarts[chunk], plain, 0, plainLength);
+                } else {
+                    readRange(extents, chunkStarts[chunk], packed, 0, stored);
+                    inflater.reset();
+                    inflater.setInput(packed, 0, stored);
+                    try {
+                        if (inflater.inflate(plain, 0, plainLength) != plainLength) {
+                            throw new IOException("Compressed file is corrupted.");
+                        }
+                    } catch (DataFormatException e) {
+                        throw new IOException("Compressed file is corrupted.", e);
+                    }
+                }
+                decoded = chunk;
+            }
+
+            int inChunk = (int) (position % COMPRESS_CHUNK);
+            return (int) Math.min(max, Math.min(end - position, plainLength - inChunk));
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            if (open) {
+                open = false;
+                inflater.end();
+                ReadEpochs.exit(epoch);
+                Metrics.READ_SNAPSHOT.recordSince(opened);
+            }
+        }
+    }
+
+    // Streams new contents into a file, they replace the old ones on close(). The data goes to new blocks,
+    // reserved from the bitmap as it comes in: readers keep reading the old ones until then, and after
+    // for the ones that started before. A compressed file is deflated a chunk at a time, each chunk stored
+    // from a block boundary on, and the chunk table goes last (see readChunkTable()).
+    private class FileWriteChannel implements WritableByteChannel {
+        private final String fileName;
+        private final ReentrantLock fileLock; // null if the caller keeps the lock
+        private final long locked; // when the lock was acquired
+        private final int index;
+        private final FEntry file;
+        private final ExtentList oldExtents;
+        int[] blocks; // the reserved blocks, in file order
+        int blockCount;
+        long size; // bytes written to the blocks so far
+        boolean open = true;
+
+        // Compressed files only, null otherwise
+        private final byte[] chunk; // data waiting to be compressed
+        private final byte[] packed;
+        private final Deflater deflater;
+        private int chunkFill;
+        private int[] chunkLengths;
+        private int chunkCount;
+        private long plainSize; // bytes written to the file, before compression
+
+        // Caller holds the file's write lock, it is released by close() or abort()
+        FileWriteChannel(String fileName, ReentrantLock fileLock, long locked, int expectedSize, boolean compressed)
+                throws Exception {
+            this.fileName = fileName;
+            this.fileLock = fileLock;
+            this.locked = locked;
+            if (compressed) {
+                chunk = new byte[COMPRESS_CHUNK];
+                packed = new byte[COMPRESS_CHUNK];
+                deflater = new Deflater(Deflater.BEST_SPEED, true);
+                chunkLengths = new int[4];
+            } else {
+                chunk = null;
+                packed = null;
+                deflater = null;
+            }
+
+            metaLock.lock();
+            try {
+                index = nameIndex.find(fileName);
+                if (index == -1) {
+                    throw new Exception("File not found...");
+                }
+                file = fEntryTable[index];
+                oldExtents = extentsOf(file);
+                reclaimBlocks();
+
+                // Check if space is enougth
+                int expectedBlocks = (int) Math.ceil((double) expectedSize / BLOCK_SIZE);
+                blocks = new int[Math.max(1, expectedBlocks)];
+                if (expectedBlocks > 0) {
+                    if (!freeBlocks.allocate(expectedBlocks, blocks, 0)) {
+                        throw new Exception("Not enough free space. Aborting...");
+                    }
+                    blockCount = expectedBlocks;
+                }
+            } catch (Exception e) {
+                if (deflater != null) {
+                    deflater.end();
+                }
+                throw e;
+            } finally {
+                metaLock.unlock();
+            }
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+
+            int written = src.remaining();
+            try {
+                if (chunk == null) {
+                    store(src);
+                    return written;
+                }
+                while (src.hasRemaining()) {
+                    int n = Math.min(src.remaining(), chunk.length - chunkFill);
+                    if (plainSize + n > Integer.MAX_VALUE) {
+                        throw new IOException("File too large");
+                    }
+                    src.get(chunk, chunkFill, n);
+                    chunkFill += n;
+                    plainSize += n;
+                    if (chunkFill == chunk.length) {
+                        storeChunk();
+                    }
+                }
+            } catch (IOException e) {
+                abort();
+                throw e;
+            }
+            return written;
+        }
+
+        // Writes all of src to the file's blocks
+        void store(ByteBuffer src) throws IOException {
+            while (src.hasRemaining()) {
+                int fileBlock = (int) (size / BLOCK_SIZE);
+                int inBlock = (int) (size % BLOCK_SIZE);
+                if (fileBlock == blockCount) {
+                    reserveMore();
+                }
+
+                // One disk write for as much of src as fits in the run of contiguous blocks starting here
+                int run = 1;
+                while (fileBlock + run < blockCount && blocks[fileBlock + run] == blocks[fileBlock] + run
+                        && (long) run * BLOCK_SIZE - inBlock < src.remaining()) {
+                    run++;
+                }
+                int n = (int) Math.min(src.remaining(), (long) run * BLOCK_SIZE - inBlock);
+                if (size + n > Integer.MAX_VALUE) {
+                    throw new IOException("File too large");
+                }
+
+                int limit = src.limit();
+                src.limit(src.position() + n);
+                try {
+                    disk.write((long) blocks[fileBlock] * BLOCK_SIZE + inBlock, src);
+                } finally {
+                    src.limit(limit);
+                }
+                size += n;
+            }
+        }
+
+        // Deflates the chunk and stores it, padded to the next block. One that doesn't get smaller is stored as is
+        private void storeChunk() throws IOException {
+            deflater.reset();
+            deflater.setInput(chunk, 0, chunkFill);
+            deflater.finish();
+            int length = deflater.deflate(packed, 0, chunkFill - 1);
+            if (deflater.finished()) {
+                store(ByteBuffer.wrap(packed, 0, length));
+            } else {
+                length = chunkFill;
+                store(ByteBuffer.wrap(chunk, 0, chunkFill));
+            }
+            int pad = (int) (-size & (BLOCK_SIZE - 1));
+            store(ByteBuffer.wrap(zeroBlock, 0, pad));
+
+            if (chunkCount == chunkLengths.length) {
+                chunkLengths = Arrays.copyOf(chunkLengths, chunkCount * 2);
+            }
+            chunkLengths[chunkCount++] = length;
+            Metrics.COMPRESSION_BYTES_IN.add(chunkFill);
+            Metrics.COMPRESSION_BYTES_STORED.add(length);
+            chunkFill = 0;
+        }
+
+        // The last chunk, then the table
+        private void finishChunks() throws IOException {
+            if (chunkFill > 0) {
+                storeChunk();
+            }
+            ByteBuffer table = ByteBuffer.allocate(chunkCount * 4);
+            for (int c = 0; c < chunkCount; c++) {
+                table.putInt(chunkLengths[c]);
+            }
+            store(table.flip());
+        }
+
+        // Reserves the next batch of blocks. Batches grow with the file so big files still get long runs.
+        void reserveMore() throws IOException {
+            metaLock.lock();
+            try {
+                reclaimBlocks();
+                int batch = Math.max(chunkSize() / BLOCK_SIZE, Math.min(blockCount, WRITE_RESERVE_BLOCKS));
+                batch = Math.min(batch, freeBlocks.freeCount());
+                if (batch == 0) {
+                    throw new IOException("Not enough free space. Aborting...");
+                }
+                if (blockCount + batch > blocks.length) {
+                    blocks = Arrays.copyOf(blocks, Math.max(blocks.length * 2, blockCount + batch));
+                }
+                freeBlocks.allocate(batch, blocks, blockCount);
+                blockCount += batch;
+            } finally {
+                metaLock.unlock();
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        // Puts the new blocks in place of the old ones
+        @Override
+        public void close() throws IOException {
+            if (!open) {
+                return;
+            }
+            open = false;
+
+            long lsn;
+            boolean zeroNow;
+            ExtentList freed;
+            try {
+                try {
+                    if (chunk != null) {
+                        finishChunks();
+                    }
+                    finish();
+                } catch (IOException e) {
+                    freeReserved();
+                    throw e;
+                }
+
+                metaLock.lock();
+                try {
+                    ExtentList newExtents = contents();
+                    if (!hasNodes(newExtents.count(), file.getFirstBlock())) {
+                        freeReserved();
+                        throw new IOException("Not enough free space. Aborting...");
+                    }
+
+                    // Chain all the nodes together
+                    unlinkExtents(file.getFirstBlock(), oldExtents);
+                    int head = linkExtents(newExtents);
+
+                    // Reserved blocks the new contents didn't need were never written, nothing to scrub
+                    freeUnused();
+
+                    file.setFirstBlock(head);
+                    file.setFilesize((int) (chunk != null ? plainSize : size));
+                    file.setExtents(newExtents);
+                    file.setCompressed(chunk != null);
+                    if (chunk != null) {
+                        file.setChunkLengths(Arrays.copyOf(chunkLengths, chunkCount));
+                    }
+                    dirtyEntries.set(index);
+                    freed = dropRefs(oldExtents);
+                    zeroNow = retireBlocks(freed, scrubMode == ScrubMode.IMMEDIATE);
+
+                } finally {
+                    lsn = writeMetaData();
+                    metaLock.unlock();
+                }
+
+            } finally {
+                done();
+            }
+            awaitDurable(lsn);
+            if (zeroNow) {
+                zeroRetired(freed);
+            }
+        }
+
+        // Last writes before the blocks are published. Only the end of the last block needs clearing,
+        // everything before it was just written
+        void finish() throws IOException {
+            int tail = (int) (size % BLOCK_SIZE);
+            if (tail != 0) {
+                disk.write((long) blocks[numBlocks() - 1] * BLOCK_SIZE + tail, zeroBlock, 0, BLOCK_SIZE - tail);
+            }
+        }
+
+        // The file's new blocks
+        ExtentList contents() {
+            return ExtentList.fromBlocks(blocks, numBlocks());
+        }
+
+        // Must hold metaLock
+        void freeUnused() {
+            for (int i = numBlocks(); i < blockCount; i++) {
+                freeBlocks.setFree(blocks[i], true);
+            }
+        }
+
+        private int numBlocks() {
+            return (int) ((size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        }
+
+        // Gives back the reserved blocks, the file stays as it was
+        void abort() {
+            if (open) {
+                open = false;
+                freeReserved();
+                done();
+            }
+        }
+
+        void freeReserved() {
+            metaLock.lock();
+            try {
+                for (int i = 0; i < blockCount; i++) {
+                    releaseBlocks(blocks[i], 1, false);
+                }
+            } finally {
+                metaLock.unlock();
+            }
+        }
+
+        // Lets go of the deflater and the file lock, if it's ours
+        private void done() {
+            if (deflater != null) {
+                deflater.end();
+            }
+            if (fileLock != null) {
+                unlockWrite(fileLock, fileName, locked);
+            }
+        }
+    }
+
+    // FileWriteChannel for deduplicated images. The data is cut into blocks and hashed, and a block that's
+    // already on disk with the same bytes is used again instead of being written. Only new blocks come out
+    // of the reserved ones, runs of those still go out in one disk write. Every block put in the file holds
+    // a reference from the start, so a shared block can't be freed between finding it and close().
+    private class DedupWriteChannel extends FileWriteChannel {
+        private final byte[] staged = new byte[BLOCK_SIZE]; // block being filled
+        private final byte[] stored = new byte[BLOCK_SIZE]; // the block found with the same hash
+        private final byte[] pending; // new blocks not written yet, they're a contiguous run
+        private final long[] pendingHashes;
+        private final int[] pendingRefs; // times each pending block is in the file
+        private int pendingCount;
+        private int flushed; // reserved blocks written and indexed so far
+        private int taken; // reserved blocks put in the file, the ones after flushed are pending
+        private int[] fileBlocks = new int[16]; // the file's blocks, in file order
+        private int fileBlockCount;
+
+        DedupWriteChannel(String fileName, ReentrantLock fileLock, long locked, boolean compressed) throws Exception {
+            super(fileName, fileLock, locked, 0, compressed);
+            pending = new byte[chunkSize()];
+            pendingHashes = new long[pending.length / BLOCK_SIZE];
+            pendingRefs = new int[pendingHashes.length];
+        }
+
+        @Override
+        void store(ByteBuffer src) throws IOException {
+            while (src.hasRemaining()) {
+                int inBlock = (int) (size % BLOCK_SIZE);
+                int n = Math.min(src.remaining(), BLOCK_SIZE - inBlock);
+                if (size + n > Integer.MAX_VALUE) {
+                    throw new IOException("File too large");
+                }
+                src.get(staged, inBlock, n);
+                size += n;
+                if (inBlock + n == BLOCK_SIZE) {
+                    storeBlock();
+                }
+            }
+        }
+
+        // Adds the staged block to the file, as a block that holds the same bytes if there is one
+        private void storeBlock() throws IOException {
+            long hash = BlockHash.of(staged, 0, BLOCK_SIZE);
+            int match;
+            metaLock.lock();
+            try {
+                match = hashIndex.find(hash);
+                if (match != -1) {
+                    blockRefs[match]++;
+                }
+            } finally {
+                metaLock.unlock();
+            }
+
+            if (match != -1) {
+                addBlock(match);
+                // Same hash doesn't have to mean same bytes
+                disk.read((long) match * BLOCK_SIZE, stored, 0, BLOCK_SIZE);
+                if (Arrays.equals(stored, staged)) {
+                    Metrics.BLOCKS_DEDUPLICATED.increment();
+                    return;
+                }
+                fileBlockCount--;
+                unref(match);
+            }
+
+            // Repeats within the file are usually close together (runs of zeros), look in what's not written yet too
+            for (int i = 0; i < pendingCount; i++) {
+                if (pendingHashes[i] == hash
+                        && Arrays.equals(pending, i * BLOCK_SIZE, (i + 1) * BLOCK_SIZE, staged, 0, BLOCK_SIZE)) {
+                    pendingRefs[i]++;
+                    addBlock(blocks[flushed + i]);
+                    Metrics.BLOCKS_DEDUPLICATED.increment();
+                    return;
+                }
+            }
+
+            if (taken == blockCount) {
+                reserveMore();
+            }
+            if (pendingCount > 0 && (blocks[taken] != blocks[taken - 1] + 1 || pendingCount == pendingHashes.length)) {
+                flushPending();
+            }
+            System.arraycopy(staged, 0, pending, pendingCount * BLOCK_SIZE, BLOCK_SIZE);
+            pendingHashes[pendingCount] = hash;
+            pendingRefs[pendingCount++] = 1;
+            addBlock(blocks[taken++]);
+        }
+
+        private void addBlock(int block) {
+            if (fileBlockCount == fileBlocks.length) {
+                fileBlocks = Arrays.copyOf(fileBlocks, fileBlockCount * 2);
+            }
+            fileBlocks[fileBlockCount++] = block;
+        }
+
+        // Writes the pending blocks, from then on other writes can find them by their hash
+        private void flushPending() throws IOException {
+            if (pendingCount == 0) {
+                return;
+            }
+            disk.write((long) blocks[flushed] * BLOCK_SIZE, pending, 0, pendingCount * BLOCK_SIZE);
+
+            metaLock.lock();
+            try {
+                for (int i = 0; i < pendingCount; i++) {
+                    int block = blocks[flushed + i];
+                    blockRefs[block] = pendingRefs[i];
+                    if (hashIndex.put(pendingHashes[i], block)) {
+                        blockHashes[block] = pendingHashes[i];
+                        dirtyHashes.set(block);
+                    }
+                }
+            } finally {
+                metaLock.unlock();
+            }
+            flushed += pendingCount;
+            pendingCount = 0;
+        }
+
+        // Lets go of a block that had the right hash but not the right bytes
+        private void unref(int block) throws IOException {
+            ExtentList freed = new ExtentList();
+            freed.add(block, 1);
+            boolean zeroNow;
+            metaLock.lock();
+            try {
+                freed = dropRefs(freed);
+                zeroNow = retireBlocks(freed, scrubMode == ScrubMode.IMMEDIATE);
+            } finally {
+                metaLock.unlock();
+            }
+            if (zeroNow) {
+                zeroRetired(freed);
+            }
+        }
+
+        private boolean isPending(int block) {
+            return pendingCount > 0 && block >= blocks[flushed] && block < blocks[flushed] + pendingCount;
+        }
+
+        // The last block is padded with zeros, it's looked up like the others
+        @Override
+        void finish() throws IOException {
+            int tail = (int) (size % BLOCK_SIZE);
+            if (tail != 0) {
+                Arrays.fill(staged, tail, BLOCK_SIZE, (byte) 0);
+                storeBlock();
+            }
+            flushPending();
+        }
+
+        @Override
+        ExtentList contents() {
+            return ExtentList.fromBlocks(fileBlocks, fileBlockCount);
+        }
+
+        @Override
+        void freeUnused() {
+            for (int i = taken; i < blockCount; i++) {
+                freeBlocks.setFree(blocks[i], true);
+            }
+        }
+
+        // Drops the references the file's blocks hold and gives back the reserved blocks that weren't indexed
+        @Override
+        void freeReserved() {
+            metaLock.lock();
+            try {
+                ExtentList held = new ExtentList();
+                for (int i = 0; i < fileBlockCount; i++) {
+                    if (!isPending(fileBlocks[i])) {
+                        held.add(fileBlocks[i], 1);
+                    }
+                }
+                for (int i = flushed; i < blockCount; i++) {
+                    releaseBlocks(blocks[i], 1, false);
+                }
+                retireBlocks(dropRefs(held), false);
+            } finally {
+                metaLock.unlock();
+            }
         }
     }
 }
@@ -0,0 +1,64 @@
+package ca.concordia.filesystem;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import ca.concordia.filesystem.device.FileChannelDevice;
+
+
+// Crashes the metadata journal right after a checkpoint sealed a segment, with the header of the
+// new active segment torn (zeroed), and checks that replay still brings back the sealed transactions.
+// They were acknowledged as durable, so losing them would lose finished operations.
+//
+// Usage: JournalReplayTest [directory for the scratch files]
+public class JournalReplayTest
+{
+    public static void main(String[] args) throws Exception {
+        File directory = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"));
+        File image = new File(directory, "journal-test.dat");
+        String journalName = image.getPath() + ".journal";
+
+        System.out.println("Journal Replay Test");
+        byte[] sealedData = "sealed before the crash".getBytes(StandardCharsets.UTF_8);
+        byte[] activeData = "written after the rotation".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer metadata = ByteBuffer.allocate(4096);
+        metadata.put(0, sealedData);
+        metadata.put(1024, activeData);
+
+        try (RandomAccessFile file = new RandomAccessFile(image, "rw");
+                MetadataJournal journal = new MetadataJournal(journalName, new FileChannelDevice(file))) {
+            file.setLength(0);
+            file.setLength(metadata.capacity());
+            journal.reset();
+
+            // Acknowledged, then sealed by a checkpoint that never got to write it in place
+            journal.append(metadata, 0, sealedData.length);
+            journal.awaitDurable(journal.commit());
+            journal.rotate();
+            journal.append(metadata, 1024, 1024 + activeData.length);
+            journal.awaitDurable(journal.commit());
+        }
+
+        // The crash tore the header of the new segment
+        try (RandomAccessFile active = new RandomAccessFile(journalName + ".1", "rw")) {
+            active.write(new byte[12]);
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(image, "rw");
+                MetadataJournal journal = new MetadataJournal(journalName, new FileChannelDevice(file))) {
+            int replayed = journal.replay(metadata.capacity());
+            byte[] back = new byte[sealedData.length];
+            file.seek(0);
+            file.readFully(back);
+            System.out.println("Sealed transactions after a torn segment header: "
+                    + (replayed == 1 && Arrays.equals(back, sealedData) ? "OK" : "MISSING (" + replayed + " replayed)"));
+        }
+
+        new File(journalName).delete();
+        new File(journalName + ".1").delete();
+        image.delete();
+    }
+}
@@ -0,0 +1,397 @@
+package ca.concordia.filesystem;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import ca.concordia.filesystem.device.BlockDevice;
+import ca.concordia.metrics.Metrics;
+
+// Redo log for the metadata region, kept in files next to the image. Every writeMetaData() is one
+// transaction holding the encoded FEntry slots, FNodes and bitmap words it changed, and those only reach
+// their place in the image at a checkpoint, after the journal has them on disk. On mount the complete
+// transactions are replayed over the image before the metadata is read, so a crash at any point
+// leaves the image as it was after some whole number of operations.
+//
+// segment:      magic (4) | generation (8) | transactions ...
+// transaction:  length (4) | ranges | CRC32 of the ranges (4)      range:  offset (4) | length (4) | bytes
+//
+// There are two segment files. Transactions go to the active one, a checkpoint seals it (rotate()) and
+// new ones go to the other while the checkpoint writes the metadata in place, then the sealed one is
+// emptied (finishCheckpoint()). Replay goes through them oldest generation first. A journal from before
+// segments is a single file of transactions without the header.
+//
+// Group commit: transactions are appended under metaLock, and their threads wait for them to be durable
+// after letting go of it. A waiter that finds nobody flushing writes out everything appended so far with
+// one force(), the others wait for it and usually find their transaction went out with it.
+class MetadataJournal implements Closeable {
+
+    static final long CHECKPOINT_BYTES = 16 * 1024 * 1024; // journal size that triggers a checkpoint
+    private static final int SEGMENT_MAGIC = 0x4A524E32; // "JRN2"
+    private static final int SEGMENT_HEADER = 12;
+
+    // One of the journal files
+    private static final class Segment {
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private long size; // bytes written to it, guarded by lock
+
+        private Segment(String filename) throws IOException {
+            file = new RandomAccessFile(filename, "rw");
+            channel = file.getChannel();
+        }
+    }
+
+    private final Segment[] segments = new Segment[2];
+    private final BlockDevice disk; // forced before the journal, metadata never points at data that isn't there
+
+    // The transaction being built, only touched under metaLock
+    private ByteBuffer transaction = ByteBuffer.allocate(4096);
+
+    // Everything below is guarded by lock
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition flushed = lock.newCondition();
+    private ByteBuffer pending = ByteBuffer.allocate(64 * 1024); // committed transactions not written out yet
+    private ByteBuffer spare = ByteBuffer.allocate(64 * 1024);
+    private long appendedLsn; // bytes committed since the journal was opened
+    private long durableLsn; // how many of those are on disk
+    private Segment active;
+    private Segment sealed; // waiting for its checkpoint to finish, null if there's none going on
+    private int sealedPending = -1; // bytes at the start of pending that still go to the sealed segment
+    private long generation;
+    private boolean flushing;
+    private IOException failure; // once a write fails nothing is durable any more
+
+    MetadataJournal(String filename, BlockDevice disk) throws IOException {
+        segments[0] = new Segment(filename);
+        segments[1] = new Segment(filename + ".1");
+        active = segments[0];
+        this.disk = disk;
+    }
+
+    // Adds bytes start .. end of the metadata image to the open transaction. Must hold metaLock
+    void append(ByteBuffer image, int start, int end) {
+        if (transaction.position() == 0) {
+            transaction.putInt(0); // length, filled in by commit()
+        }
+        transaction = ensureRoom(transaction, 8 + (end - start));
+        transaction.putInt(start);
+        transaction.putInt(end - start);
+        transaction.put(transaction.position(), image, start, end - start);
+        transaction.position(transaction.position() + end - start);
+    }
+
+    // Closes the open transaction and returns the LSN to wait for. Must hold metaLock
+    long commit() {
+        lock.lock();
+        try {
+            if (transaction.position() > 0) {
+                int length = transaction.position() - 4;
+                CRC32 crc = new CRC32();
+                crc.update(transaction.array(), 4, length);
+                transaction.putInt(0, length);
+                transaction = ensureRoom(transaction, 4);
+                transaction.putInt((int) crc.getValue());
+
+                transaction.flip();
+                pending = ensureRoom(pending, transaction.remaining());
+                appendedLsn += transaction.remaining();
+                pending.put(transaction);
+                transaction.clear();
+            }
+            // Nothing new still waits for what came before, it may have been built on it
+            return appendedLsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long appendedLsn() {
+        lock.lock();
+        try {
+            return appendedLsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // True when the active segment is big enough for a checkpoint and none is going on
+    boolean needsCheckpoint() {
+        lock.lock();
+        try {
+            return sealed == null && active.size + pending.position() >= CHECKPOINT_BYTES;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Seals the active segment, transactions from now on go to the other one. Returns the LSN the sealed one
+    // ends at: once that's durable and the metadata as of now is in place, call finishCheckpoint().
+    // Must hold metaLock, so the caller can copy the metadata as of the last sealed transaction
+    long rotate() {
+        lock.lock();
+        try {
+            sealed = active;
+            active = segments[active == segments[0] ? 1 : 0];
+            sealedPending = pending.position();
+            startSegment();
+            return appendedLsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Empties the sealed segment, everything in it must be in place in the image and forced first
+    void finishCheckpoint() throws IOException {
+        lock.lock();
+        try {
+            while (flushing) {
+                flushed.awaitUninterruptibly();
+            }
+            emptySegment(sealed);
+            sealed = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns once everything up to lsn is on disk, writing it out if nobody else is
+    void awaitDurable(long lsn) throws IOException {
+        lock.lock();
+        try {
+            while (durableLsn < lsn) {
+                if (failure != null) {
+                    throw new IOException("Metadata journal is unusable: " + failure.getMessage(), failure);
+                }
+                if (flushing) {
+                    flushed.awaitUninterruptibly();
+                    continue;
+                }
+
+                // Our turn: take everything committed so far, new commits go to the other buffer meanwhile.
+                // Right after a rotate() the start of it still belongs to the sealed segment
+                flushing = true;
+                ByteBuffer out = pending;
+                pending = spare;
+                long target = appendedLsn;
+                int split = sealedPending;
+                sealedPending = -1;
+                Segment first = split >= 0 ? sealed : null;
+                Segment second = active;
+                long firstSize = first == null ? 0 : first.size;
+                long secondSize = second.size;
+                IOException error = null;
+                lock.unlock();
+                try {
+                    disk.force();
+                    out.flip();
+                    if (first != null) {
+                        // The older transactions have to be on disk before any newer ones
+                        int limit = out.limit();
+                        out.limit(split);
+                        firstSize = write(first, out, firstSize);
+                        out.limit(limit);
+                    }
+                    secondSize = write(second, out, secondSize);
+                    Metrics.JOURNAL_FORCES.increment();
+                } catch (IOException e) {
+                    error = e;
+                } finally {
+                    lock.lock();
+                }
+
+                if (error == null) {
+                    durableLsn = target;
+                    if (first != null) {
+                        first.size = firstSize;
+                    }
+                    second.size = secondSize;
+                } else {
+                    failure = error;
+                }
+                spare = out.clear();
+                flushing = false;
+                flushed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Writes what's left of out at the end of the segment and forces it, returns the new size
+    private static long write(Segment segment, ByteBuffer out, long size) throws IOException {
+        if (!out.hasRemaining()) {
+            return size;
+        }
+        while (out.hasRemaining()) {
+            size += segment.channel.write(out, size);
+        }
+        segment.channel.force(false);
+        return size;
+    }
+
+    // Empties both segments, everything in them must be in place in the image and forced first
+    void reset() throws IOException {
+        lock.lock();
+        try {
+            while (flushing) {
+                flushed.awaitUninterruptibly();
+            }
+            for (Segment segment : segments) {
+                emptySegment(segment);
+            }
+            sealed = null;
+            sealedPending = -1;
+            pending.clear();
+            active = segments[0];
+            generation = 0;
+            startSegment();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The new size has to be on disk before anything is written over the start again,
+    // or a crash could replay old transactions after new ones. Must hold lock
+    private static void emptySegment(Segment segment) throws IOException {
+        segment.channel.truncate(0);
+        segment.channel.force(true);
+        segment.size = 0;
+    }
+
+    // The header of the active segment goes out with its first transactions. Must hold lock
+    private void startSegment() {
+        pending = ensureRoom(pending, SEGMENT_HEADER);
+        pending.putInt(SEGMENT_MAGIC);
+        pending.putLong(++generation);
+    }
+
+    // Writes the complete transactions found in the journal into the image and empties the journal.
+    // Segments go oldest first, and stop at the first torn or corrupted transaction: it never committed,
+    // and nothing after it did either, in that segment or a newer one.
+    // A segment without a header holds nothing committed (it's empty, or a crash tore the header of one
+    // just started) and is skipped, unless neither has one: then the first file is a journal from before segments.
+    int replay(int metadataSize) throws IOException {
+        long[] generations = new long[2];
+        boolean[] valid = new boolean[2];
+        for (int i = 0; i < 2; i++) {
+            FileChannel channel = segments[i].channel;
+            if (channel.size() >= SEGMENT_HEADER) {
+                ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER);
+                readFully(channel, header, 0);
+                if (header.getInt(0) == SEGMENT_MAGIC) {
+                    generations[i] = header.getLong(4);
+                    valid[i] = true;
+                }
+            }
+        }
+
+        int[] order;
+        long start = SEGMENT_HEADER;
+        if (valid[0] && valid[1]) {
+            order = generations[0] <= generations[1] ? new int[]{0, 1} : new int[]{1, 0};
+        } else if (valid[0] || valid[1]) {
+            order = new int[]{valid[0] ? 0 : 1};
+        } else {
+            order = new int[]{0};
+            start = 0;
+        }
+
+        int replayed = 0;
+        for (int i : order) {
+            int[] count = new int[1];
+            boolean complete = replaySegment(segments[i].channel, start, metadataSize, count);
+            replayed += count[0];
+            if (!complete) {
+                break;
+            }
+        }
+
+        disk.force();
+        reset();
+        return replayed;
+    }
+
+    // Returns false if it stopped at a torn or corrupted transaction, count[0] is how many were applied
+    private boolean replaySegment(FileChannel channel, long position, int metadataSize, int[] count)
+            throws IOException {
+        long size = channel.size();
+        while (position + 8 <= size) {
+            ByteBuffer header = ByteBuffer.allocate(4);
+            readFully(channel, header, position);
+            int length = header.getInt(0);
+            if (length <= 0 || position + 8 + length > size) {
+                return false;
+            }
+
+            ByteBuffer body = ByteBuffer.allocate(length + 4);
+            readFully(channel, body, position + 4);
+            CRC32 crc = new CRC32();
+            crc.update(body.array(), 0, length);
+            if ((int) crc.getValue() != body.getInt(length) || !rangesFit(body, length, metadataSize)) {
+                return false;
+            }
+
+            for (int p = 0; p < length; ) {
+                int offset = body.getInt(p);
+                int n = body.getInt(p + 4);
+                disk.write(offset, body.array(), p + 8, n);
+                p += 8 + n;
+            }
+            position += 8 + length;
+            count[0]++;
+        }
+        return position == size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            segments[0].file.close();
+        } finally {
+            segments[1].file.close();
+        }
+    }
+
+    // A transaction is applied whole or not at all
+    private static boolean rangesFit(ByteBuffer body, int length, int metadataSize) {
+        for (int p = 0; p < length; ) {
+            if (p + 8 > length) {
+                return false;
+            }
+            int offset = body.getInt(p);
+            int n = body.getInt(p + 4);
+            if (offset < 0 || n < 0 || offset > metadataSize - n || p + 8 + n > length) {
+                return false;
+            }
+            p += 8 + n;
+        }
+        return true;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Metadata journal ended early");
+            }
+        }
+    }
+
+    private static ByteBuffer ensureRoom(ByteBuffer buffer, int needed) {
+        if (buffer.remaining() >= needed) {
+            return buffer;
+        }
+        int capacity = buffer.capacity();
+        while (capacity - buffer.position() < needed) {
+            capacity *= 2;
+        }
+        ByteBuffer bigger = ByteBuffer.allocate(capacity);
+        bigger.put(buffer.flip());
+        return bigger;
+    }
+}
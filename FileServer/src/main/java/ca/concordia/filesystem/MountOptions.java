@@ -0,0 +1,105 @@
+package ca.concordia.filesystem;
+
+import java.util.Properties;
+
+// Settings for a mounted image that aren't saved in it, unlike DiskGeometry.
+// They can change between runs of the server.
+public class MountOptions {
+
+    private boolean memoryMapped = false;
+    private ScrubMode scrubMode = ScrubMode.BACKGROUND;
+    private long cacheSize = 64L * 1024 * 1024; // bytes, 0 turns the block cache off
+    private boolean journaled = true;
+    private boolean compressed = false;
+    private int shards = 1;
+
+    // Reads the fs.* system properties, anything missing keeps its default
+    //   fs.mmap=true   memory map the image instead of using FileChannel reads and writes
+    //   fs.scrub=none|background|immediate   when freed blocks get zeroed, see ScrubMode
+    //   fs.cacheMb=64  off-heap block cache in front of the disk, 0 to turn it off
+    //   fs.journal=false   write metadata in place without a journal or any fsync (not crash safe)
+    //   fs.compress=true   store files written whole compressed, if the image was formatted for it
+    //   fs.shards=1    images the files are spread over, see ShardedFileSystem. Stays the same for a set of images
+    public static MountOptions fromProperties(Properties properties) {
+        MountOptions options = new MountOptions();
+        options.setMemoryMapped(Boolean.parseBoolean(properties.getProperty("fs.mmap", "false")));
+        options.setScrubMode(ScrubMode.valueOf(properties.getProperty("fs.scrub", "background").toUpperCase()));
+        options.setCacheSize(Long.parseLong(properties.getProperty("fs.cacheMb", "64")) * 1024 * 1024);
+        options.setJournaled(Boolean.parseBoolean(properties.getProperty("fs.journal", "true")));
+        options.setCompressed(Boolean.parseBoolean(properties.getProperty("fs.compress", "false")));
+        options.setShards(Integer.parseInt(properties.getProperty("fs.shards", "1")));
+        return options;
+    }
+
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    public MountOptions setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+        return this;
+    }
+
+    public ScrubMode getScrubMode() {
+        return scrubMode;
+    }
+
+    public MountOptions setScrubMode(ScrubMode scrubMode) {
+        this.scrubMode = scrubMode;
+        return this;
+    }
+
+    public long getCacheSize() {
+        return cacheSize;
+    }
+
+    public MountOptions setCacheSize(long cacheSize) {
+        if (cacheSize < 0) {
+            throw new IllegalArgumentException("Cache size cannot be negative.");
+        }
+        this.cacheSize = cacheSize;
+        return this;
+    }
+
+    public boolean isJournaled() {
+        return journaled;
+    }
+
+    public MountOptions setJournaled(boolean journaled) {
+        this.journaled = journaled;
+        return this;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    public MountOptions setCompressed(boolean compressed) {
+        this.compressed = compressed;
+        return this;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    public MountOptions setShards(int shards) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("Need at least one shard.");
+        }
+        this.shards = shards;
+        return this;
+    }
+
+    // Same settings, to change some for one image without touching these
+    MountOptions copy() {
+        MountOptions copy = new MountOptions();
+        copy.memoryMapped = memoryMapped;
+        copy.scrubMode = scrubMode;
+        copy.cacheSize = cacheSize;
+        copy.journaled = journaled;
+        copy.compressed = compressed;
+        copy.shards = shards;
+        return copy;
+    }
+}
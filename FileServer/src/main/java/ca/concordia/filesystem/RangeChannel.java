@@ -0,0 +1,17 @@
+package ca.concordia.filesystem;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+// A file opened with FileSystemManager.openRead(). It reads the file as it was when opened, and
+// the blocks of that version aren't reused until it's closed.
+public interface RangeChannel extends ReadableByteChannel {
+
+    // Bytes left to read
+    int remaining();
+
+    // Sends everything that's left to target straight from the disk image, one FileChannel.transferTo
+    // per extent, so a contiguous file is a single sendfile. Returns how many bytes were sent.
+    long transferTo(WritableByteChannel target) throws IOException;
+}
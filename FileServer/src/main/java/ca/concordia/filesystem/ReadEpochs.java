@@ -0,0 +1,103 @@
+package ca.concordia.filesystem;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Keeps blocks that a file stopped pointing at away from the allocator until no reader can still be on them.
+// Readers don't take the file locks, they copy the file's extents and join the current epoch (enter()),
+// read the blocks, then leave it (exit()). A writer publishes its new blocks, retires the old ones into
+// the current epoch and starts a new one (advance()): readers arriving after that can't see the old blocks.
+// Retired blocks go back to the free list once every epoch up to theirs is empty (reclaim()).
+// Everything but exit() must hold the file system's metaLock.
+class ReadEpochs {
+
+    // One epoch and the readers still in it
+    static final class Epoch {
+        private final long number;
+        private final AtomicInteger readers = new AtomicInteger();
+
+        private Epoch(long number) {
+            this.number = number;
+        }
+    }
+
+    // A run of blocks waiting on the readers of its epoch and the ones before
+    private static final class Retired {
+        private final long epoch;
+        private final int start;
+        private final int length;
+        private final boolean zero; // has to be zeroed before it's freed
+
+        private Retired(long epoch, int start, int length, boolean zero) {
+            this.epoch = epoch;
+            this.start = start;
+            this.length = length;
+            this.zero = zero;
+        }
+    }
+
+    private final ArrayDeque<Epoch> epochs = new ArrayDeque<>(); // oldest first, the last one is current
+    private final ArrayDeque<Retired> limbo = new ArrayDeque<>(); // in retire order, so in epoch order too
+    private int retiredBlocks;
+
+    ReadEpochs() {
+        epochs.add(new Epoch(0));
+    }
+
+    // Joins the current epoch, pass what's returned to exit() once done reading
+    Epoch enter() {
+        Epoch current = epochs.getLast();
+        current.readers.incrementAndGet();
+        return current;
+    }
+
+    // Doesn't need metaLock, any thread can do it. Blocks freed by the exit wait for the next reclaim()
+    static void exit(Epoch epoch) {
+        epoch.readers.decrementAndGet();
+    }
+
+    // True if some reader may still be on blocks retired right now
+    boolean hasReaders() {
+        for (Epoch epoch : epochs) {
+            if (epoch.readers.get() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Blocks no file points at any more, readers in the current epoch may still see them
+    void retire(int start, int length, boolean zero) {
+        limbo.add(new Retired(epochs.getLast().number, start, length, zero));
+        retiredBlocks += length;
+    }
+
+    // Readers from now on get a new epoch, so they can't see anything retired so far
+    void advance() {
+        epochs.add(new Epoch(epochs.getLast().number + 1));
+    }
+
+    // Takes out the retired runs no reader can see any more, as {start, length, 1 if they need zeroing}.
+    // The caller frees them
+    ArrayList<int[]> reclaim() {
+        // Old epochs that emptied out are done for good, nobody joins them again
+        while (epochs.size() > 1 && epochs.getFirst().readers.get() == 0) {
+            epochs.removeFirst();
+        }
+
+        long oldest = epochs.getFirst().number;
+        ArrayList<int[]> runs = new ArrayList<>();
+        while (!limbo.isEmpty() && limbo.getFirst().epoch < oldest) {
+            Retired run = limbo.removeFirst();
+            retiredBlocks -= run.length;
+            runs.add(new int[]{run.start, run.length, run.zero ? 1 : 0});
+        }
+        return runs;
+    }
+
+    // Blocks retired but not reclaimed yet
+    int retiredBlocks() {
+        return retiredBlocks;
+    }
+}
@@ -0,0 +1,13 @@
+package ca.concordia.filesystem;
+
+// What happens to the old contents of blocks a file lets go of. Nothing reads a free block and every
+// new owner overwrites or clears the parts it uses, so zeroing is only about not leaving old data on disk.
+public enum ScrubMode {
+    // Freed blocks are only marked free in the bitmap
+    NONE,
+    // Freed blocks are marked free right away and zeroed later by a background thread,
+    // unless they get reused first. A restart forgets the blocks that were still waiting.
+    BACKGROUND,
+    // Freed blocks are zeroed before they are marked free, deletes take time proportional to the file
+    IMMEDIATE
+}
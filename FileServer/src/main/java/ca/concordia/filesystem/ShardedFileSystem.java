@@ -0,0 +1,298 @@
+package ca.concordia.filesystem;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import ca.concordia.filesystem.datastructures.FileNameIndex;
+import ca.concordia.log.Log;
+
+// Spreads files over several images, each with its own FileSystemManager (locks, cache, journal, scrubber),
+// so requests for files on different images don't share anything. A file lives on the image its name hashes to,
+// picked on a consistent hashing ring. The shard count has to stay the same for a set of images: each image's
+// superblock says which shard of how many it is (DiskGeometry.sharded()), and mounting refuses images made for
+// another count, or images of another count lying next to the ones it would use, instead of losing track
+// of files. Images sharded before the superblock said so only get their files checked against the ring.
+// With one shard it's just the one image, named as given.
+public class ShardedFileSystem {
+
+    private static final int RING_POINTS = 64; // points on the ring per shard, more spreads files more evenly
+
+    private final FileSystemManager[] shards;
+    private final String[] imageNames;
+    // The ring: sorted points and the shard owning each. A name goes to the first point at or after its hash
+    private final int[] ringPoints;
+    private final int[] ringShards;
+
+    // Each shard gets an image of the requested geometry and an even share of the block cache
+    public ShardedFileSystem(String fileSystemName, DiskGeometry requested, MountOptions options) throws Exception {
+        int count = options.getShards();
+        shards = new FileSystemManager[count];
+        imageNames = new String[count];
+
+        long[] ring = new long[count * RING_POINTS];
+        for (int s = 0; s < count; s++) {
+            for (int p = 0; p < RING_POINTS; p++) {
+                long point = mix(s * RING_POINTS + p + 1);
+                ring[s * RING_POINTS + p] = point << 32 | s;
+            }
+        }
+        Arrays.sort(ring);
+        ringPoints = new int[ring.length];
+        ringShards = new int[ring.length];
+        for (int i = 0; i < ring.length; i++) {
+            ringPoints[i] = (int) (ring[i] >> 32);
+            ringShards[i] = (int) ring[i];
+        }
+
+        checkStrayImages(fileSystemName, count);
+
+        // If one shard can't be mounted, the ones before it are unmounted again
+        MountOptions shardOptions = options.copy().setCacheSize(options.getCacheSize() / count);
+        try {
+            for (int s = 0; s < count; s++) {
+                imageNames[s] = imageName(fileSystemName, s, count);
+                shards[s] = new FileSystemManager(imageNames[s], requested.sharded(s, count), shardOptions);
+                checkShard(s, count);
+                for (String fileName : shards[s].listFiles()) {
+                    if (route(fileName) != s) {
+                        throw new IllegalStateException("File " + fileName + " in " + imageNames[s]
+                                + " belongs to another shard, the images were made with a different shard count.");
+                    }
+                }
+            }
+        } catch (Exception | Error e) {
+            for (FileSystemManager shard : shards) {
+                if (shard != null) {
+                    try {
+                        shard.close();
+                    } catch (Exception closing) {
+                        e.addSuppressed(closing);
+                    }
+                }
+            }
+            throw e;
+        }
+    }
+
+    // Images named for another shard count: the single image when there are shards, the first shard when
+    // there's one, or the shard after the last one. Any of them means the count changed
+    private static void checkStrayImages(String fileSystemName, int count) {
+        String[] strays;
+        if (count == 1) {
+            strays = new String[] {imageName(fileSystemName, 0, 2)};
+        } else {
+            strays = new String[] {fileSystemName, imageName(fileSystemName, count, count + 1)};
+        }
+        for (String stray : strays) {
+            if (new File(stray).exists()) {
+                throw new IllegalStateException("Found " + stray + ", the images were made with a different"
+                        + " shard count than " + count + ".");
+            }
+        }
+    }
+
+    private void checkShard(int s, int count) {
+        DiskGeometry geometry = shards[s].getGeometry();
+        if (!geometry.isSharded() && count > 1) {
+            Log.FS.warn("{} doesn't say which shard it is, it was sharded by an older version.", imageNames[s]);
+        } else if (geometry.getShard() != s || geometry.getShardCount() != count) {
+            throw new IllegalStateException(imageNames[s] + " is shard " + geometry.getShard() + " of "
+                    + geometry.getShardCount() + ", not " + s + " of " + count + ".");
+        }
+    }
+
+    // Unmounts every shard, see FileSystemManager.close()
+    public void close() throws Exception {
+        Exception failure = null;
+        for (FileSystemManager shard : shards) {
+            try {
+                shard.close();
+            } catch (Exception e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // filesystem.dat -> filesystem-0.dat, filesystem-1.dat, ... A single shard keeps the name as is
+    static String imageName(String fileSystemName, int shard, int count) {
+        if (count == 1) {
+            return fileSystemName;
+        }
+        int dot = fileSystemName.lastIndexOf('.');
+        if (dot <= fileSystemName.lastIndexOf(File.separatorChar)) {
+            return fileSystemName + "-" + shard;
+        }
+        return fileSystemName.substring(0, dot) + "-" + shard + fileSystemName.substring(dot);
+    }
+
+    // Murmur3's finalizer, FileNameIndex.hash() alone leaves similar names close together
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        return hash ^ (hash >>> 16);
+    }
+
+    // Which shard holds this name, ignoring case like the lookups do
+    public int shardOf(String fileName) {
+        return route(fileName);
+    }
+
+    private int route(String fileName) {
+        if (shards.length == 1) {
+            return 0;
+        }
+        int i = Arrays.binarySearch(ringPoints, mix(FileNameIndex.hash(fileName)));
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return ringShards[i == ringPoints.length ? 0 : i];
+    }
+
+    private FileSystemManager shardFor(String fileName) {
+        return shards[route(fileName)];
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public FileSystemManager getShard(int shard) {
+        return shards[shard];
+    }
+
+    public String getImageName(int shard) {
+        return imageNames[shard];
+    }
+
+    // Summed over the shards
+
+    public int freeBlockCount() {
+        int free = 0;
+        for (FileSystemManager shard : shards) {
+            free += shard.freeBlockCount();
+        }
+        return free;
+    }
+
+    public int retiredBlockCount() {
+        int retired = 0;
+        for (FileSystemManager shard : shards) {
+            retired += shard.retiredBlockCount();
+        }
+        return retired;
+    }
+
+    // File operations go to the file's shard
+
+    public void createFile(String fileName) throws Exception {
+        shardFor(fileName).createFile(fileName);
+    }
+
+    public void writeFile(String fileName, byte[] contents) throws Exception {
+        shardFor(fileName).writeFile(fileName, contents);
+    }
+
+    public void writeFile(String fileName, InputStream in, int length) throws Exception {
+        shardFor(fileName).writeFile(fileName, in, length);
+    }
+
+    public byte[] readFile(String fileName) throws Exception {
+        return shardFor(fileName).readFile(fileName);
+    }
+
+    public byte[] readFile(String fileName, int offset, int length) throws Exception {
+        return shardFor(fileName).readFile(fileName, offset, length);
+    }
+
+    public void readFile(String fileName, int offset, int length, OutputStream out) throws Exception {
+        shardFor(fileName).readFile(fileName, offset, length, out);
+    }
+
+    public RangeChannel openRead(String fileName, int offset, int length) throws Exception {
+        return shardFor(fileName).openRead(fileName, offset, length);
+    }
+
+    public void appendFile(String fileName, byte[] data) throws Exception {
+        shardFor(fileName).appendFile(fileName, data);
+    }
+
+    public void appendFile(String fileName, InputStream in, int length) throws Exception {
+        shardFor(fileName).appendFile(fileName, in, length);
+    }
+
+    public void writeFileAt(String fileName, int offset, byte[] data) throws Exception {
+        shardFor(fileName).writeFileAt(fileName, offset, data);
+    }
+
+    public void writeFileAt(String fileName, int offset, InputStream in, int length) throws Exception {
+        shardFor(fileName).writeFileAt(fileName, offset, in, length);
+    }
+
+    public void deleteFile(String fileName, boolean secure) throws Exception {
+        shardFor(fileName).deleteFile(fileName, secure);
+    }
+
+    // Every shard's files, shard by shard
+    public String[] listFiles() throws Exception {
+        if (shards.length == 1) {
+            return shards[0].listFiles();
+        }
+        ArrayList<String> fileList = new ArrayList<>();
+        for (FileSystemManager shard : shards) {
+            fileList.addAll(Arrays.asList(shard.listFiles()));
+        }
+        return fileList.toArray(new String[0]);
+    }
+
+    // Each shard runs its part of the batch, in the batch's order, with one metadata flush of its own.
+    // So a batch spanning shards is one commit per shard, a crash can keep some of them and not others.
+    public Exception[] runBatch(Batch batch) throws Exception {
+        if (shards.length == 1) {
+            return shards[0].runBatch(batch);
+        }
+
+        int n = batch.size();
+        Batch[] parts = new Batch[shards.length];
+        int[] shardOfOp = new int[n];
+        int[] indexInPart = new int[n];
+        int[] partSizes = new int[shards.length];
+        for (int i = 0; i < n; i++) {
+            int s = route(batch.getFileName(i));
+            if (parts[s] == null) {
+                parts[s] = new Batch();
+            }
+            if (batch.isCreate(i)) {
+                parts[s].create(batch.getFileName(i));
+            } else {
+                parts[s].write(batch.getFileName(i), batch.getContents(i));
+            }
+            shardOfOp[i] = s;
+            indexInPart[i] = partSizes[s]++;
+        }
+
+        Exception[][] partResults = new Exception[shards.length][];
+        for (int s = 0; s < shards.length; s++) {
+            if (parts[s] != null) {
+                partResults[s] = shards[s].runBatch(parts[s]);
+            }
+        }
+
+        Exception[] results = new Exception[n];
+        for (int i = 0; i < n; i++) {
+            results[i] = partResults[shardOfOp[i]][indexInPart[i]];
+        }
+        return results;
+    }
+}
@@ -0,0 +1,184 @@
+package ca.concordia.filesystem.datastructures;
+
+import java.util.BitSet;
+
+// Free space bitmap, one bit per block packed into longs (bit set = free).
+// Searches skip a whole word of used blocks at a time and start from a hint
+// where the last allocation ended, so they don't rescan the full disk every write.
+public class BlockBitmap {
+
+    // How far allocate() looks for a contiguous run before settling for scattered blocks,
+    // so a badly fragmented disk doesn't turn every write into a full scan
+    private static final int RUN_SEARCH_WORDS = 1024;
+
+    private final long[] words;
+    private final int size;
+    private int freeCount;
+    private int hint; // word to start the next search from
+    private final BitSet dirtyWords = new BitSet(); // words changed since the last clearDirty()
+
+    // Every block starts out used
+    public BlockBitmap(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Bitmap size cannot be negative.");
+        }
+        this.size = size;
+        this.words = new long[(size + 63) >>> 6];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int freeCount() {
+        return freeCount;
+    }
+
+    public boolean isFree(int block) {
+        return (words[block >>> 6] & (1L << block)) != 0;
+    }
+
+    public void setFree(int block, boolean free) {
+        if (isFree(block) == free) {
+            return;
+        }
+        words[block >>> 6] ^= 1L << block;
+        dirtyWords.set(block >>> 6);
+        if (free) {
+            freeCount++;
+            hint = Math.min(hint, block >>> 6);
+        } else {
+            freeCount--;
+        }
+    }
+
+    public void free(int start, int length) {
+        for (int i = start; i < start + length; i++) {
+            setFree(i, true);
+        }
+    }
+
+    // First free block at or after from, or -1
+    public int nextFree(int from) {
+        if (from >= size) {
+            return -1;
+        }
+        int w = from >>> 6;
+        long word = words[w] & (-1L << from);
+        while (word == 0) {
+            if (++w == words.length) {
+                return -1;
+            }
+            word = words[w];
+        }
+        int block = (w << 6) + Long.numberOfTrailingZeros(word);
+        return block < size ? block : -1;
+    }
+
+    // First used block at or after from, stopping at limit
+    public int nextUsed(int from, int limit) {
+        limit = Math.min(limit, size);
+        if (from >= limit) {
+            return limit;
+        }
+        int w = from >>> 6;
+        long word = ~words[w] & (-1L << from);
+        while (word == 0) {
+            if (++w == words.length || (w << 6) >= limit) {
+                return limit;
+            }
+            word = ~words[w];
+        }
+        return Math.min(limit, (w << 6) + Long.numberOfTrailingZeros(word));
+    }
+
+    // Start of the first run of length free blocks, or -1 if there's no such run
+    public int findRun(int length) {
+        if (length <= 0 || length > freeCount) {
+            return -1;
+        }
+        int start = findRun(hint << 6, length, size);
+        if (start == -1 && hint != 0) {
+            start = findRun(0, length, size);
+        }
+        return start;
+    }
+
+    // Only looks at runs starting before limit
+    private int findRun(int from, int length, int limit) {
+        int block = nextFree(from);
+        while (block != -1 && block < limit && block <= size - length) {
+            int end = nextUsed(block, block + length);
+            if (end - block == length) {
+                return block;
+            }
+            block = nextFree(end);
+        }
+        return -1;
+    }
+
+    // Marks count blocks used and puts their numbers in blocks[offset ..].
+    // A contiguous run near the hint is preferred, otherwise the first free runs after the hint are used.
+    // Returns false without changing anything if there aren't enough free blocks.
+    public boolean allocate(int count, int[] blocks, int offset) {
+        if (count > freeCount) {
+            return false;
+        }
+
+        int from = hint << 6;
+        int start = findRun(from, count, (int) Math.min(size, from + (long) RUN_SEARCH_WORDS * 64));
+        if (start != -1) {
+            for (int i = 0; i < count; i++) {
+                setFree(start + i, false);
+                blocks[offset + i] = start + i;
+            }
+            hint = (start + count) >>> 6;
+            return true;
+        }
+
+        int block = nextFree(hint << 6);
+        for (int i = 0; i < count; i++) {
+            if (block == -1) {
+                block = nextFree(0); // wrapped around, freeCount says there's more
+            }
+            setFree(block, false);
+            blocks[offset + i] = block;
+            block = nextFree(block + 1);
+        }
+        hint = (block == -1) ? 0 : block >>> 6;
+        return true;
+    }
+
+    // Raw access to the words so the bitmap can be saved as is
+
+    public int wordCount() {
+        return words.length;
+    }
+
+    public long getWord(int index) {
+        return words[index];
+    }
+
+    public void setWord(int index, long word) {
+        if (index == words.length - 1 && (size & 63) != 0) {
+            word &= (1L << size) - 1; // no free bits past the end of the disk
+        }
+        if (words[index] != word) {
+            dirtyWords.set(index);
+        }
+        freeCount += Long.bitCount(word) - Long.bitCount(words[index]);
+        words[index] = word;
+        if (word != 0) {
+            hint = Math.min(hint, index);
+        }
+    }
+
+    // Next word changed since the last clearDirty(), or -1
+    public int nextDirtyWord(int from) {
+        return dirtyWords.nextSetBit(from);
+    }
+
+    public void clearDirty() {
+        dirtyWords.clear();
+    }
+}
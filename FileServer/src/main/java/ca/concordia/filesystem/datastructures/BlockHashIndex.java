@@ -0,0 +1,79 @@
+package ca.concordia.filesystem.datastructures;
+
+import java.util.Arrays;
+
+// Content hash -> block holding that content, for deduplication. Open addressing with linear probing
+// like FileNameIndex, sized for one entry per block so it never has to grow. A hash maps to one block,
+// a second block with the same hash just isn't indexed.
+public class BlockHashIndex {
+
+    private static final int EMPTY = -1;
+
+    private final long[] hashes;
+    private final int[] blocks;
+    private final int mask;
+
+    public BlockHashIndex(int maxBlocks) {
+        // Keep the load factor at or under 0.5 so probe runs stay short
+        int capacity = Integer.highestOneBit(Math.max(2, maxBlocks) * 2 - 1) << 1;
+        hashes = new long[capacity];
+        blocks = new int[capacity];
+        mask = capacity - 1;
+        Arrays.fill(blocks, EMPTY);
+    }
+
+    private int home(long hash) {
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    // Returns the block indexed under hash, or -1
+    public int find(long hash) {
+        for (int i = home(hash); blocks[i] != EMPTY; i = (i + 1) & mask) {
+            if (hashes[i] == hash) {
+                return blocks[i];
+            }
+        }
+        return -1;
+    }
+
+    // Indexes block under hash unless another block already is. Returns true if it was added
+    public boolean put(long hash, int block) {
+        int i = home(hash);
+        while (blocks[i] != EMPTY) {
+            if (hashes[i] == hash) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        hashes[i] = hash;
+        blocks[i] = block;
+        return true;
+    }
+
+    // Takes out hash if it's indexed to this block
+    public void remove(long hash, int block) {
+        int i = home(hash);
+        while (blocks[i] != EMPTY && hashes[i] != hash) {
+            i = (i + 1) & mask;
+        }
+        if (blocks[i] != block) {
+            return;
+        }
+
+        // Backward shift deletion, same as FileNameIndex
+        int hole = i;
+        for (int j = (hole + 1) & mask; blocks[j] != EMPTY; j = (j + 1) & mask) {
+            int home = home(hashes[j]);
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                hashes[hole] = hashes[j];
+                blocks[hole] = blocks[j];
+                hole = j;
+            }
+        }
+        blocks[hole] = EMPTY;
+    }
+
+    public void clear() {
+        Arrays.fill(blocks, EMPTY);
+    }
+}
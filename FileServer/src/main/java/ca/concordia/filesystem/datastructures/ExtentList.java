@@ -0,0 +1,108 @@
+package ca.concordia.filesystem.datastructures;
+
+import java.util.Arrays;
+
+// The blocks of a file as runs of contiguous blocks (start, length), in file order.
+// Each run can be read or written with a single disk access, and finding the block that
+// holds a given offset of the file is a binary search instead of walking the chain.
+public class ExtentList {
+
+    private int count;
+    private int[] starts = new int[4];
+    private int[] lengths = new int[4];
+    private int[] fileBlocks = new int[4]; // index of each run's first block within the file
+    private int totalBlocks;
+
+    // Builds the list from the extent chain starting at firstBlock. Every node on the chain is
+    // the head of a run of getLength() blocks, runs that happen to touch are merged.
+    public static ExtentList fromChain(FNode[] fNodeTable, int firstBlock) {
+        ExtentList extents = new ExtentList();
+        for (int node = firstBlock; node != -1; node = fNodeTable[node].getNext()) {
+            extents.add(fNodeTable[node].getStart(), fNodeTable[node].getLength());
+        }
+        return extents;
+    }
+
+    // Builds the list from the first count entries of a block array
+    public static ExtentList fromBlocks(int[] blocks, int count) {
+        ExtentList extents = new ExtentList();
+        for (int i = 0; i < count; i++) {
+            extents.add(blocks[i], 1);
+        }
+        return extents;
+    }
+
+    public ExtentList copy() {
+        ExtentList copy = new ExtentList();
+        for (int e = 0; e < count; e++) {
+            copy.add(starts[e], lengths[e]);
+        }
+        return copy;
+    }
+
+    public void add(int start, int length) {
+        if (length <= 0) {
+            throw new IllegalArgumentException("Extent length must be positive.");
+        }
+
+        if (count > 0 && starts[count - 1] + lengths[count - 1] == start) {
+            lengths[count - 1] += length;
+        } else {
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                lengths = Arrays.copyOf(lengths, count * 2);
+                fileBlocks = Arrays.copyOf(fileBlocks, count * 2);
+            }
+            starts[count] = start;
+            lengths[count] = length;
+            fileBlocks[count] = totalBlocks;
+            count++;
+        }
+        totalBlocks += length;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public int start(int extent) {
+        return starts[extent];
+    }
+
+    public int length(int extent) {
+        return lengths[extent];
+    }
+
+    // Index within the file of the extent's first block
+    public int fileBlock(int extent) {
+        return fileBlocks[extent];
+    }
+
+    public int totalBlocks() {
+        return totalBlocks;
+    }
+
+    // The extent holding the fileBlock-th block of the file, or -1 if the file is shorter
+    public int find(int fileBlock) {
+        if (fileBlock < 0 || fileBlock >= totalBlocks) {
+            return -1;
+        }
+        int low = 0;
+        int high = count - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (fileBlocks[mid] <= fileBlock) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    // Disk block holding the fileBlock-th block of the file, or -1
+    public int blockAt(int fileBlock) {
+        int extent = find(fileBlock);
+        return extent == -1 ? -1 : starts[extent] + (fileBlock - fileBlocks[extent]);
+    }
+}
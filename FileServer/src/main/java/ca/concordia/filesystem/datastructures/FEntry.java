@@ -5,6 +5,9 @@ public class FEntry {
     private String filename;
     private int filesize;
     private int firstBlock; // Pointers to data blocks
+    private ExtentList extents; // Cached view of the block chain, not saved to disk
+    private boolean compressed; // blocks hold compressed chunks, filesize is the uncompressed size
+    private int[] chunkLengths; // Cached chunk table of a compressed file, goes with extents
 
     public FEntry(String filename, int filesize, int firstblock) throws IllegalArgumentException{
         //Check filename is max 11 bytes long
@@ -46,4 +49,32 @@ public class FEntry {
     public int getFirstBlock() {
         return firstBlock;
     }
+
+    // null until someone builds it from the chain
+    public ExtentList getExtents() {
+        return extents;
+    }
+
+    // A new version of the file's blocks, the chunk table went with the old one
+    public void setExtents(ExtentList extents) {
+        this.extents = extents;
+        this.chunkLengths = null;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
+
+    // null until someone reads it
+    public int[] getChunkLengths() {
+        return chunkLengths;
+    }
+
+    public void setChunkLengths(int[] chunkLengths) {
+        this.chunkLengths = chunkLengths;
+    }
 }
@@ -4,10 +4,18 @@ public class FNode {
 
     // private int blockIndex;
     private int next;
+    // First block of the run. It's the node's own block, except in deduplicated images where
+    // nodes are handed out on their own
+    private int start;
+    // Number of contiguous blocks starting here when this node heads an extent, 0 otherwise.
+    // Images from before extents only have single block nodes.
+    private int length;
 
     public FNode(int blockIndex) {
         // this.blockIndex = blockIndex;
         this.next = -1;
+        this.length = 0;
+        this.start = blockIndex;
     }
 
     public void setNext(int newNext) {
@@ -17,4 +25,23 @@ public class FNode {
     public int getNext() {
         return next;
     }
+
+    public void setLength(int newLength) {
+        if (newLength < 0) {
+            throw new IllegalArgumentException("Extent length cannot be negative.");
+        }
+        length = newLength;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public void setStart(int block) {
+        start = block;
+    }
+
+    public int getStart() {
+        return start;
+    }
 }
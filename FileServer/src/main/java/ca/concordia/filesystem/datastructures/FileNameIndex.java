@@ -0,0 +1,90 @@
+package ca.concordia.filesystem.datastructures;
+
+import java.util.Arrays;
+
+// Case-insensitive filename -> FEntry slot index. Open addressing with linear probing,
+// the table only stores slot numbers and names are compared straight against the FEntry table,
+// so a lookup doesn't allocate anything.
+public class FileNameIndex {
+
+    private static final int EMPTY = -1;
+
+    private final FEntry[] entries;
+    private final int[] table;
+    private final int mask;
+
+    public FileNameIndex(FEntry[] entries) {
+        this.entries = entries;
+
+        // Keep the load factor at or under 0.5 so probe runs stay short
+        int capacity = Integer.highestOneBit(Math.max(2, entries.length) * 2 - 1) << 1;
+        table = new int[capacity];
+        mask = capacity - 1;
+        Arrays.fill(table, EMPTY);
+    }
+
+    // Same result for names that are equalsIgnoreCase, without building a lower case copy
+    public static int hash(String name) {
+        int hash = 0;
+        for (int i = 0; i < name.length(); i++) {
+            hash = 31 * hash + Character.toLowerCase(Character.toUpperCase(name.charAt(i)));
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    // Returns the FEntry slot holding this name, or -1
+    public int find(String name) {
+        for (int i = hash(name) & mask; table[i] != EMPTY; i = (i + 1) & mask) {
+            if (entries[table[i]].getFilename().equalsIgnoreCase(name)) {
+                return table[i];
+            }
+        }
+        return -1;
+    }
+
+    // Indexes the entry currently stored at this slot. The name must not be indexed yet.
+    public void put(int slot) {
+        int i = hash(entries[slot].getFilename()) & mask;
+        while (table[i] != EMPTY) {
+            i = (i + 1) & mask;
+        }
+        table[i] = slot;
+    }
+
+    // Call before the slot is cleared in the FEntry table, the name is needed to find it
+    public void remove(int slot) {
+        int i = hash(entries[slot].getFilename()) & mask;
+        while (table[i] != slot) {
+            if (table[i] == EMPTY) {
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+
+        // Backward shift deletion: pull later entries of the run into the hole so no tombstones are needed
+        int hole = i;
+        for (int j = (hole + 1) & mask; table[j] != EMPTY; j = (j + 1) & mask) {
+            int home = hash(entries[table[j]].getFilename()) & mask;
+            // Only move it if its home isn't between the hole and where it sits now
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                table[hole] = table[j];
+                hole = j;
+            }
+        }
+        table[hole] = EMPTY;
+    }
+
+    public void clear() {
+        Arrays.fill(table, EMPTY);
+    }
+
+    // Throws away the index and builds it again from the FEntry table, used after loading metadata
+    public void rebuild() {
+        clear();
+        for (int slot = 0; slot < entries.length; slot++) {
+            if (entries[slot] != null) {
+                put(slot);
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package ca.concordia.filesystem.device;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+// Where the disk image lives. Reads and writes are positional, there is no shared seek pointer,
+// so implementations must allow any number of threads to call them at once.
+public interface BlockDevice extends Closeable {
+
+    // Size of the image in bytes
+    long size();
+
+    // Reads exactly length bytes starting at position
+    void read(long position, byte[] dst, int offset, int length) throws IOException;
+
+    void write(long position, byte[] src, int offset, int length) throws IOException;
+
+    // Same as above with buffers: fills dst up to its limit / writes out all of src, advancing their positions
+    void read(long position, ByteBuffer dst) throws IOException;
+
+    void write(long position, ByteBuffer src) throws IOException;
+
+    // Sends count bytes starting at position to target, returning once all of them are written.
+    // Straight from the image with FileChannel.transferTo (sendfile for a socket), they never come onto the heap
+    void transferTo(long position, long count, WritableByteChannel target) throws IOException;
+
+    // Makes everything written so far durable
+    void force() throws IOException;
+}
@@ -0,0 +1,362 @@
+package ca.concordia.filesystem.device;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Keeps recently used blocks in off-heap memory in front of another device, so hot files are
+// served without going to the disk. Writes go to the device first and then to the cached copies,
+// so the cache never holds anything the disk doesn't.
+//
+// Blocks are spread over segments, each with its own lock, slots and CLOCK hand. A new block starts
+// with its reference bit clear and only survives a sweep of the hand if it was hit since,
+// so one big sequential read can't push out the small files that are read all the time.
+// The blocks before firstCachedBlock (the metadata) skip the cache.
+public class CachedBlockDevice implements BlockDevice {
+
+    private static final int MAX_SEGMENTS = 16;
+    private static final int MAX_MISS_RUN = 64; // blocks fetched from the device with one read on a miss
+
+    private final BlockDevice device;
+    private final int blockSize;
+    private final long cachedFrom; // byte position of firstCachedBlock
+    private final Segment[] segments;
+    private final int capacity;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public CachedBlockDevice(BlockDevice device, int blockSize, int capacityBlocks, int firstCachedBlock) {
+        if (capacityBlocks < 1) {
+            throw new IllegalArgumentException("Cache needs room for at least one block.");
+        }
+        this.device = device;
+        this.blockSize = blockSize;
+        this.cachedFrom = (long) firstCachedBlock * blockSize;
+
+        int segmentCount = Math.min(MAX_SEGMENTS, Integer.highestOneBit(capacityBlocks));
+        int slotsPerSegment = capacityBlocks / segmentCount;
+        if ((long) slotsPerSegment * blockSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Cache too big, at most " + MAX_SEGMENTS + " x 2 GiB.");
+        }
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(slotsPerSegment);
+        }
+        this.capacity = slotsPerSegment * segmentCount;
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    // Slots in use right now
+    public int cachedBlocks() {
+        int used = 0;
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                used += segment.size;
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return used;
+    }
+
+    public int capacityBlocks() {
+        return capacity;
+    }
+
+    @Override
+    public long size() {
+        return device.size();
+    }
+
+    @Override
+    public void read(long position, byte[] dst, int offset, int length) throws IOException {
+        read(position, ByteBuffer.wrap(dst, offset, length));
+    }
+
+    @Override
+    public void write(long position, byte[] src, int offset, int length) throws IOException {
+        write(position, ByteBuffer.wrap(src, offset, length));
+    }
+
+    @Override
+    public void read(long position, ByteBuffer dst) throws IOException {
+        if (position < cachedFrom) {
+            int n = (int) Math.min(dst.remaining(), cachedFrom - position);
+            readThrough(position, dst, n);
+            position += n;
+        }
+
+        while (dst.hasRemaining()) {
+            int block = (int) (position / blockSize);
+            int inBlock = (int) (position % blockSize);
+            int n = Math.min(dst.remaining(), blockSize - inBlock);
+
+            if (segmentFor(block).get(block, inBlock, dst, n)) {
+                hits.increment();
+            } else if (n == blockSize) {
+                n = readMissRun(block, dst);
+            } else {
+                readPartialMiss(block, inBlock, dst, n);
+            }
+            position += n;
+        }
+    }
+
+    // The whole block at dst's position missed: reads it and the following missing whole blocks
+    // straight into dst with one device read, then keeps a copy of each. Returns the bytes read.
+    private int readMissRun(int first, ByteBuffer dst) throws IOException {
+        int run = 1;
+        while (run < MAX_MISS_RUN && (long) (run + 1) * blockSize <= dst.remaining()
+                && !segmentFor(first + run).contains(first + run)) {
+            run++;
+        }
+        misses.add(run);
+
+        // Writes since these epochs mean what we read may be stale by the time we insert it
+        long[] epochs = new long[run];
+        for (int i = 0; i < run; i++) {
+            epochs[i] = segmentFor(first + i).epoch;
+        }
+
+        int start = dst.position();
+        readThrough((long) first * blockSize, dst, run * blockSize);
+        for (int i = 0; i < run; i++) {
+            segmentFor(first + i).put(first + i, dst, start + i * blockSize, epochs[i]);
+        }
+        return run * blockSize;
+    }
+
+    // Part of a block missed: fetches the whole block so it can be cached, then copies the part asked for
+    private void readPartialMiss(int block, int inBlock, ByteBuffer dst, int n) throws IOException {
+        misses.increment();
+        Segment segment = segmentFor(block);
+        long epoch = segment.epoch;
+
+        ByteBuffer whole = ByteBuffer.allocate(blockSize);
+        device.read((long) block * blockSize, whole);
+        segment.put(block, whole, 0, epoch);
+        dst.put(dst.position(), whole, inBlock, n);
+        dst.position(dst.position() + n);
+    }
+
+    @Override
+    public void write(long position, ByteBuffer src) throws IOException {
+        // The device first: a miss that read the old data sees the epoch move and doesn't cache it
+        int start = src.position();
+        int length = src.remaining();
+        device.write(position, src);
+
+        int offset = start;
+        if (position < cachedFrom) {
+            int n = (int) Math.min(length, cachedFrom - position);
+            offset += n;
+            position += n;
+        }
+        while (offset < start + length) {
+            int block = (int) (position / blockSize);
+            int inBlock = (int) (position % blockSize);
+            int n = Math.min(start + length - offset, blockSize - inBlock);
+            segmentFor(block).update(block, inBlock, src, offset, n);
+            offset += n;
+            position += n;
+        }
+    }
+
+    // Around the cache: the device has everything the cache does, and a big download would only push out hot blocks
+    @Override
+    public void transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        device.transferTo(position, count, target);
+    }
+
+    @Override
+    public void force() throws IOException {
+        device.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        device.close();
+    }
+
+    private void readThrough(long position, ByteBuffer dst, int n) throws IOException {
+        int limit = dst.limit();
+        dst.limit(dst.position() + n);
+        try {
+            device.read(position, dst);
+        } finally {
+            dst.limit(limit);
+        }
+    }
+
+    private Segment segmentFor(int block) {
+        return segments[((block * 0x9E3779B9) >>> 28) & (segments.length - 1)];
+    }
+
+    private class Segment {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final ByteBuffer data; // slot i holds its block at i * blockSize
+        private final int[] slotBlock; // block in each slot, -1 when empty
+        private final boolean[] referenced;
+        private final int[] table; // block -> slot, open addressing, -1 when empty
+        private final int mask;
+        private final int shift;
+        private int hand;
+        private int size;
+        private volatile long epoch; // bumped by every write to a block of this segment
+
+        Segment(int slots) {
+            data = ByteBuffer.allocateDirect(slots * blockSize);
+            slotBlock = new int[slots];
+            referenced = new boolean[slots];
+            Arrays.fill(slotBlock, -1);
+            table = new int[Integer.highestOneBit(Math.max(1, slots * 2 - 1)) << 1];
+            Arrays.fill(table, -1);
+            mask = table.length - 1;
+            shift = Integer.numberOfLeadingZeros(mask);
+        }
+
+        boolean contains(int block) {
+            lock.lock();
+            try {
+                return find(block) != -1;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Copies n bytes of the block into dst if it's cached
+        boolean get(int block, int inBlock, ByteBuffer dst, int n) {
+            lock.lock();
+            try {
+                int slot = find(block);
+                if (slot == -1) {
+                    return false;
+                }
+                referenced[slot] = true;
+                dst.put(dst.position(), data, slot * blockSize + inBlock, n);
+                dst.position(dst.position() + n);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Caches a whole block read from the device, unless it was written since epoch
+        void put(int block, ByteBuffer src, int offset, long epoch) {
+            lock.lock();
+            try {
+                if (this.epoch != epoch || find(block) != -1) {
+                    return;
+                }
+                int slot = victim();
+                data.put(slot * blockSize, src, offset, blockSize);
+                slotBlock[slot] = block;
+                referenced[slot] = false;
+                insert(block, slot);
+                size++;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // A write went to the device: update the cached copy. A whole block is cached even if it wasn't,
+        // so a file that was just written is read back from memory.
+        void update(int block, int inBlock, ByteBuffer src, int offset, int n) {
+            lock.lock();
+            try {
+                epoch++;
+                int slot = find(block);
+                if (slot == -1) {
+                    if (n < blockSize) {
+                        return;
+                    }
+                    slot = victim();
+                    slotBlock[slot] = block;
+                    referenced[slot] = false;
+                    insert(block, slot);
+                    size++;
+                }
+                data.put(slot * blockSize + inBlock, src, offset, n);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Moves the hand to a free slot, evicting the first block whose reference bit is clear
+        private int victim() {
+            while (true) {
+                int slot = hand;
+                hand = (hand + 1) % slotBlock.length;
+                if (slotBlock[slot] == -1) {
+                    return slot;
+                }
+                if (referenced[slot]) {
+                    referenced[slot] = false;
+                } else {
+                    remove(slotBlock[slot]);
+                    slotBlock[slot] = -1;
+                    size--;
+                    evictions.increment();
+                    return slot;
+                }
+            }
+        }
+
+        private int find(int block) {
+            for (int i = hash(block); table[i] != -1; i = (i + 1) & mask) {
+                if (slotBlock[table[i]] == block) {
+                    return table[i];
+                }
+            }
+            return -1;
+        }
+
+        private void insert(int block, int slot) {
+            int i = hash(block);
+            while (table[i] != -1) {
+                i = (i + 1) & mask;
+            }
+            table[i] = slot;
+        }
+
+        // Backward shift deletion, so lookups never need tombstones
+        private void remove(int block) {
+            int i = hash(block);
+            while (slotBlock[table[i]] != block) {
+                i = (i + 1) & mask;
+            }
+            table[i] = -1;
+            for (int j = (i + 1) & mask; table[j] != -1; j = (j + 1) & mask) {
+                int home = hash(slotBlock[table[j]]);
+                // Move the entry back if its home isn't between the hole and where it sits now
+                if (((j - home) & mask) >= ((j - i) & mask)) {
+                    table[i] = table[j];
+                    table[j] = -1;
+                    i = j;
+                }
+            }
+        }
+
+        // Not the multiplier segmentFor() uses, or all the blocks of a segment would land in the same part of the table
+        private int hash(int block) {
+            return (block * 0x85EBCA6B) >>> shift & mask;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package ca.concordia.filesystem.device;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+// Positional FileChannel I/O (pread/pwrite). Nothing depends on the channel's position,
+// so any number of threads can read and write at the same time without a lock.
+public class FileChannelDevice implements BlockDevice {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 64;
+    private static final int STALL_WRITE = 4096; // see transferTo()
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final DirectBufferPool pool = new DirectBufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS);
+
+    public FileChannelDevice(RandomAccessFile file) {
+        this.file = file;
+        this.channel = file.getChannel();
+    }
+
+    @Override
+    public long size() {
+        try {
+            return channel.size();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public void read(long position, byte[] dst, int offset, int length) throws IOException {
+        ByteBuffer buffer = pool.acquire();
+        try {
+            while (length > 0) {
+                int n = Math.min(length, buffer.capacity());
+                buffer.clear().limit(n);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0) {
+                        throw new EOFException("Read past the end of the disk image at " + position);
+                    }
+                }
+                buffer.flip().get(dst, offset, n);
+                position += n;
+                offset += n;
+                length -= n;
+            }
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    @Override
+    public void write(long position, byte[] src, int offset, int length) throws IOException {
+        ByteBuffer buffer = pool.acquire();
+        try {
+            while (length > 0) {
+                int n = Math.min(length, buffer.capacity());
+                buffer.clear();
+                buffer.put(src, offset, n).flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, position + buffer.position());
+                }
+                position += n;
+                offset += n;
+                length -= n;
+            }
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    // Direct buffers go straight to the channel, heap ones through the byte[] versions and the pool
+    @Override
+    public void read(long position, ByteBuffer dst) throws IOException {
+        int length = dst.remaining();
+        if (dst.isDirect()) {
+            for (int done = 0; done < length; ) {
+                int n = channel.read(dst, position + done);
+                if (n < 0) {
+                    throw new EOFException("Read past the end of the disk image at " + position);
+                }
+                done += n;
+            }
+        } else {
+            read(position, dst.array(), dst.arrayOffset() + dst.position(), length);
+            dst.position(dst.position() + length);
+        }
+    }
+
+    @Override
+    public void write(long position, ByteBuffer src) throws IOException {
+        int length = src.remaining();
+        if (src.isDirect()) {
+            for (int done = 0; done < length; ) {
+                done += channel.write(src, position + done);
+            }
+        } else if (src.hasArray()) {
+            write(position, src.array(), src.arrayOffset() + src.position(), length);
+            src.position(src.position() + length);
+        } else {
+            // Read-only heap buffer, no array to hand over
+            byte[] copy = new byte[length];
+            src.get(copy);
+            write(position, copy, 0, length);
+        }
+    }
+
+    // transferTo() gives 0 when the socket is full and non-blocking underneath, which is what a blocking
+    // SocketChannel used from a virtual thread is. Then a few bytes go out with a normal write, which
+    // waits for room in the socket, and the rest carries on with transferTo.
+    @Override
+    public void transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        long end = position + count;
+        while (position < end) {
+            long n = channel.transferTo(position, end - position, target);
+            if (n > 0) {
+                position += n;
+                continue;
+            }
+
+            ByteBuffer buffer = pool.acquire();
+            try {
+                buffer.limit((int) Math.min(STALL_WRITE, end - position));
+                read(position, buffer);
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    position += target.write(buffer);
+                }
+            } finally {
+                pool.release(buffer);
+            }
+        }
+    }
+
+    @Override
+    public void force() throws IOException {
+        channel.force(false); // the image never changes size, data is enough
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,140 @@
+package ca.concordia.filesystem.device;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+// Maps the whole image into memory in 1 GiB chunks (one mapping can't be bigger than 2 GiB).
+// Reads and writes are plain copies from and to the page cache using absolute get/put,
+// which don't touch the buffer's position, so threads never wait on each other here.
+public class MappedBlockDevice implements BlockDevice {
+
+    private static final int CHUNK_SHIFT = 30;
+    private static final long CHUNK_SIZE = 1L << CHUNK_SHIFT;
+    private static final int STALL_WRITE = 4096; // see transferTo()
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer[] chunks;
+    private final long size;
+
+    // The file must already be size bytes long
+    public MappedBlockDevice(RandomAccessFile file, long size) throws IOException {
+        this.file = file;
+        this.size = size;
+
+        FileChannel channel = file.getChannel();
+        chunks = new MappedByteBuffer[(int) ((size + CHUNK_SIZE - 1) >>> CHUNK_SHIFT)];
+        for (int i = 0; i < chunks.length; i++) {
+            long start = (long) i << CHUNK_SHIFT;
+            chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(CHUNK_SIZE, size - start));
+        }
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public void read(long position, byte[] dst, int offset, int length) throws IOException {
+        checkBounds(position, length);
+        while (length > 0) {
+            int chunk = (int) (position >>> CHUNK_SHIFT);
+            int index = (int) (position & (CHUNK_SIZE - 1));
+            int n = (int) Math.min(length, CHUNK_SIZE - index);
+            chunks[chunk].get(index, dst, offset, n);
+            position += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    @Override
+    public void write(long position, byte[] src, int offset, int length) throws IOException {
+        checkBounds(position, length);
+        while (length > 0) {
+            int chunk = (int) (position >>> CHUNK_SHIFT);
+            int index = (int) (position & (CHUNK_SIZE - 1));
+            int n = (int) Math.min(length, CHUNK_SIZE - index);
+            chunks[chunk].put(index, src, offset, n);
+            position += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    @Override
+    public void read(long position, ByteBuffer dst) throws IOException {
+        checkBounds(position, dst.remaining());
+        while (dst.hasRemaining()) {
+            int chunk = (int) (position >>> CHUNK_SHIFT);
+            int index = (int) (position & (CHUNK_SIZE - 1));
+            int n = (int) Math.min(dst.remaining(), CHUNK_SIZE - index);
+            dst.put(dst.position(), chunks[chunk], index, n);
+            dst.position(dst.position() + n);
+            position += n;
+        }
+    }
+
+    @Override
+    public void write(long position, ByteBuffer src) throws IOException {
+        checkBounds(position, src.remaining());
+        while (src.hasRemaining()) {
+            int chunk = (int) (position >>> CHUNK_SHIFT);
+            int index = (int) (position & (CHUNK_SIZE - 1));
+            int n = (int) Math.min(src.remaining(), CHUNK_SIZE - index);
+            chunks[chunk].put(index, src, src.position(), n);
+            src.position(src.position() + n);
+            position += n;
+        }
+    }
+
+    // The mapping and the file share the page cache, so the file's transferTo() sends what was put here.
+    // Same as FileChannelDevice when a socket that's non-blocking underneath is full: a few bytes go out
+    // with a normal write, straight from the mapping, which waits for room.
+    @Override
+    public void transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        checkBounds(position, 0);
+        checkBounds(position + count, 0);
+        FileChannel channel = file.getChannel();
+        long end = position + count;
+        while (position < end) {
+            long n = channel.transferTo(position, end - position, target);
+            if (n > 0) {
+                position += n;
+                continue;
+            }
+
+            int chunk = (int) (position >>> CHUNK_SHIFT);
+            int index = (int) (position & (CHUNK_SIZE - 1));
+            int length = (int) Math.min(STALL_WRITE, Math.min(end - position, CHUNK_SIZE - index));
+            ByteBuffer slice = chunks[chunk].slice(index, length);
+            while (slice.hasRemaining()) {
+                position += target.write(slice);
+            }
+        }
+    }
+
+    @Override
+    public void force() throws IOException {
+        for (MappedByteBuffer chunk : chunks) {
+            chunk.force();
+        }
+    }
+
+    // The mappings go away when the buffers are collected, closing the file doesn't unmap them
+    @Override
+    public void close() throws IOException {
+        force();
+        file.close();
+    }
+
+    private void checkBounds(long position, int length) throws IOException {
+        if (position < 0 || position + length > size) {
+            throw new IOException("Access outside the disk image: " + position + " + " + length);
+        }
+    }
+}
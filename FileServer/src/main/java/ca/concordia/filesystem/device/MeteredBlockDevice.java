@@ -0,0 +1,74 @@
+package ca.concordia.filesystem.device;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import ca.concordia.metrics.Metrics;
+
+// Counts the blocks read and written through to another device, see Metrics.BLOCKS_READ/BLOCKS_WRITTEN.
+// A transfer counts every block it touches, so a few bytes of metadata count as one block.
+public class MeteredBlockDevice implements BlockDevice {
+
+    private final BlockDevice device;
+    private final int blockSize;
+
+    public MeteredBlockDevice(BlockDevice device, int blockSize) {
+        this.device = device;
+        this.blockSize = blockSize;
+    }
+
+    @Override
+    public long size() {
+        return device.size();
+    }
+
+    @Override
+    public void read(long position, byte[] dst, int offset, int length) throws IOException {
+        device.read(position, dst, offset, length);
+        Metrics.BLOCKS_READ.add(blocks(position, length));
+    }
+
+    @Override
+    public void write(long position, byte[] src, int offset, int length) throws IOException {
+        device.write(position, src, offset, length);
+        Metrics.BLOCKS_WRITTEN.add(blocks(position, length));
+    }
+
+    @Override
+    public void read(long position, ByteBuffer dst) throws IOException {
+        int length = dst.remaining();
+        device.read(position, dst);
+        Metrics.BLOCKS_READ.add(blocks(position, length));
+    }
+
+    @Override
+    public void write(long position, ByteBuffer src) throws IOException {
+        int length = src.remaining();
+        device.write(position, src);
+        Metrics.BLOCKS_WRITTEN.add(blocks(position, length));
+    }
+
+    @Override
+    public void transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        device.transferTo(position, count, target);
+        Metrics.BLOCKS_READ.add(blocks(position, count));
+    }
+
+    @Override
+    public void force() throws IOException {
+        device.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        device.close();
+    }
+
+    private long blocks(long position, long length) {
+        if (length <= 0) {
+            return 0;
+        }
+        return (position + length - 1) / blockSize - position / blockSize + 1;
+    }
+}
@@ -0,0 +1,11 @@
+package ca.concordia.log;
+
+// From least to most verbose, a logger set to a level prints that level and everything above it
+public enum Level {
+    OFF,
+    ERROR,
+    WARN,
+    INFO,
+    DEBUG,
+    TRACE
+}
@@ -0,0 +1,175 @@
+package ca.concordia.log;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The server's log categories, and the thread that prints their messages.
+// Logging threads only put a record on a bounded queue. If the log thread falls that far behind,
+// records are dropped (and counted) instead of making the caller wait, the console is never worth a stall.
+// Errors and warnings go to stderr, the rest to stdout.
+public final class Log {
+
+    private static final int QUEUE_SIZE = 64 * 1024;
+    private static final int BATCH = 1024; // records printed per write to the console
+
+    // Startup, connections, errors
+    public static final Logger SERVER = new Logger("server", Level.INFO);
+    // Filesystem events: mount, journal replay, created files, scrubber problems
+    public static final Logger FS = new Logger("fs", Level.INFO);
+    // Every file lock taken and released, very chatty
+    public static final Logger LOCK = new Logger("lock", Level.OFF);
+    // Every command line received
+    public static final Logger PROTOCOL = new Logger("protocol", Level.OFF);
+
+    private static final Logger[] LOGGERS = {SERVER, FS, LOCK, PROTOCOL};
+
+    private static final BlockingQueue<Record> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private static final AtomicLong dropped = new AtomicLong();
+    private static volatile Thread writer; // started by the first record
+
+    private Log() {
+    }
+
+    // Reads log.<category>=<level> for each category, e.g. -Dlog.lock=trace -Dlog.protocol=debug
+    public static void configure(Properties properties) {
+        for (Logger logger : LOGGERS) {
+            String level = properties.getProperty("log." + logger.getName());
+            if (level != null) {
+                logger.setLevel(Level.valueOf(level.trim().toUpperCase()));
+            }
+        }
+    }
+
+    // Records that didn't fit in the queue
+    public static long droppedRecords() {
+        return dropped.get();
+    }
+
+    static void enqueue(Logger logger, Level level, String message, Object a, Object b, Object c) {
+        Record record = new Record(System.currentTimeMillis(), logger, level, Thread.currentThread().getName(),
+                message, a, b, c);
+        if (!queue.offer(record)) {
+            dropped.incrementAndGet();
+        }
+        if (writer == null) {
+            startWriter();
+        }
+    }
+
+    private static synchronized void startWriter() {
+        if (writer != null) {
+            return;
+        }
+        writer = Thread.ofPlatform().daemon().name("log-writer").start(Log::run);
+        // Print what's still queued when the JVM exits normally
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::drain));
+    }
+
+    private static void run() {
+        List<Record> batch = new ArrayList<>(BATCH);
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, BATCH - 1);
+            print(batch);
+            batch.clear();
+        }
+    }
+
+    private static synchronized void drain() {
+        List<Record> rest = new ArrayList<>();
+        queue.drainTo(rest);
+        print(rest);
+    }
+
+    private static synchronized void print(List<Record> records) {
+        StringBuilder out = new StringBuilder();
+        StringBuilder err = new StringBuilder();
+        for (Record record : records) {
+            // One bad record (an argument whose toString() throws...) mustn't take the log thread down with it
+            StringBuilder line = new StringBuilder();
+            try {
+                record.format(line);
+            } catch (RuntimeException e) {
+                line.append("(log record could not be formatted: ").append(e).append(")")
+                        .append(System.lineSeparator());
+            }
+            (record.level.ordinal() <= Level.WARN.ordinal() ? err : out).append(line);
+        }
+
+        long lost = dropped.getAndSet(0);
+        if (lost > 0) {
+            err.append("(").append(lost).append(" log records dropped, the log can't keep up)").append(System.lineSeparator());
+        }
+        write(System.out, out);
+        write(System.err, err);
+    }
+
+    private static void write(PrintStream stream, StringBuilder text) {
+        if (text.length() > 0) {
+            stream.print(text);
+            stream.flush();
+        }
+    }
+
+    private static class Record {
+        private final long time;
+        private final Logger logger;
+        private final Level level;
+        private final String thread;
+        private final String message;
+        private final Object a;
+        private final Object b;
+        private final Object c;
+
+        Record(long time, Logger logger, Level level, String thread, String message, Object a, Object b, Object c) {
+            this.time = time;
+            this.logger = logger;
+            this.level = level;
+            this.thread = thread;
+            this.message = message;
+            this.a = a;
+            this.b = b;
+            this.c = c;
+        }
+
+        // time LEVEL [category] thread: message
+        void format(StringBuilder line) {
+            line.append(LocalTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault()));
+            line.append(' ').append(level).append(" [").append(logger.getName()).append("] ").append(thread).append(": ");
+
+            String text = String.valueOf(message); // callers pass getMessage(), which can be null
+            Object[] args = {a, b, c};
+            int next = 0;
+            int from = 0;
+            int at;
+            while (next < args.length && (at = text.indexOf("{}", from)) != -1) {
+                line.append(text, from, at).append(args[next++]);
+                from = at + 2;
+            }
+            line.append(text, from, text.length()).append(System.lineSeparator());
+
+            // A Throwable that no {} used gets its stack trace
+            for (int i = next; i < args.length; i++) {
+                if (args[i] instanceof Throwable) {
+                    StringWriter trace = new StringWriter();
+                    ((Throwable) args[i]).printStackTrace(new PrintWriter(trace));
+                    line.append(trace);
+                }
+            }
+        }
+    }
+}
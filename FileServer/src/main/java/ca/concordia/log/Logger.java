@@ -0,0 +1,109 @@
+package ca.concordia.log;
+
+// One category of messages with its own level, see Log for the categories.
+// A message is a template where each {} takes the next argument. Nothing is formatted on the calling
+// thread: the template and arguments are queued and the log thread builds the line, so a disabled
+// call is a single volatile read and an enabled one never waits on the console.
+// A Throwable as the last argument gets its stack trace printed.
+public final class Logger {
+
+    private final String name;
+    private volatile Level level;
+
+    Logger(String name, Level level) {
+        this.name = name;
+        this.level = level;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.ordinal() <= this.level.ordinal();
+    }
+
+    // Fixed numbers of arguments so no varargs array gets allocated for a disabled call
+
+    public void error(String message) {
+        log(Level.ERROR, message, null, null, null);
+    }
+
+    public void error(String message, Object a) {
+        log(Level.ERROR, message, a, null, null);
+    }
+
+    public void error(String message, Object a, Object b) {
+        log(Level.ERROR, message, a, b, null);
+    }
+
+    public void warn(String message) {
+        log(Level.WARN, message, null, null, null);
+    }
+
+    public void warn(String message, Object a) {
+        log(Level.WARN, message, a, null, null);
+    }
+
+    public void warn(String message, Object a, Object b) {
+        log(Level.WARN, message, a, b, null);
+    }
+
+    public void warn(String message, Object a, Object b, Object c) {
+        log(Level.WARN, message, a, b, c);
+    }
+
+    public void info(String message) {
+        log(Level.INFO, message, null, null, null);
+    }
+
+    public void info(String message, Object a) {
+        log(Level.INFO, message, a, null, null);
+    }
+
+    public void info(String message, Object a, Object b) {
+        log(Level.INFO, message, a, b, null);
+    }
+
+    public void info(String message, Object a, Object b, Object c) {
+        log(Level.INFO, message, a, b, c);
+    }
+
+    public void debug(String message) {
+        log(Level.DEBUG, message, null, null, null);
+    }
+
+    public void debug(String message, Object a) {
+        log(Level.DEBUG, message, a, null, null);
+    }
+
+    public void debug(String message, Object a, Object b) {
+        log(Level.DEBUG, message, a, b, null);
+    }
+
+    public void trace(String message) {
+        log(Level.TRACE, message, null, null, null);
+    }
+
+    public void trace(String message, Object a) {
+        log(Level.TRACE, message, a, null, null);
+    }
+
+    public void trace(String message, Object a, Object b) {
+        log(Level.TRACE, message, a, b, null);
+    }
+
+    private void log(Level level, String message, Object a, Object b, Object c) {
+        if (level.ordinal() <= this.level.ordinal()) {
+            Log.enqueue(this, level, message, a, b, c);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package ca.concordia.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Latencies in nanoseconds, counted in log-linear buckets like HdrHistogram: every power of two is split
+// into 32 buckets, so a percentile is off by at most 1/32 (about 3%) whatever the scale, in a fixed 8 KiB.
+// Values from 0 up to 2^36 ns (about 68 s) have their own buckets, anything longer counts in the last one.
+//
+// record() is a couple of atomic adds with no lock. Threads are spread over STRIPES copies of the
+// buckets so the ones recording at the same time mostly don't fight over the same cache lines.
+// The readers add the stripes up, which is fine since they only run for STATS and JMX.
+public class LatencyHistogram implements LatencyHistogramMBean {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; // per power of two
+    private static final int MAX_BITS = 36; // values go up to 2^36 - 1 ns
+    private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+    private static final int BUCKETS = (MAX_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+    private static final int STRIPES = 8; // power of two
+
+    private final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(STRIPES * BUCKETS);
+    private final LongAdder total = new LongAdder(); // sum of the recorded values, for the mean
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void record(long nanos) {
+        long value = Math.max(0, Math.min(nanos, MAX_VALUE));
+        int stripe = (int) Thread.currentThread().threadId() & (STRIPES - 1);
+        counts.incrementAndGet(stripe * BUCKETS + bucketOf(value));
+        total.add(value);
+        max.accumulate(value);
+    }
+
+    // Records the time since start, start being a System.nanoTime()
+    public void recordSince(long start) {
+        record(System.nanoTime() - start);
+    }
+
+    // Values under 32 get a bucket each. Above that, the top 6 bits of the value pick the bucket:
+    // shift drops the rest, and each shift has 32 buckets (the top bit is always set)
+    static int bucketOf(long value) {
+        int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+    // Highest value that lands in the bucket
+    static long highestIn(int bucket) {
+        int shift = Math.max(0, (bucket >>> SUB_BUCKET_BITS) - 1);
+        long sub = bucket - ((long) shift << SUB_BUCKET_BITS);
+        return ((sub + 1) << shift) - 1;
+    }
+
+    // The stripes added up
+    public Snapshot snapshot() {
+        long[] merged = new long[BUCKETS];
+        for (int i = 0; i < counts.length(); i++) {
+            merged[i % BUCKETS] += counts.get(i);
+        }
+        return new Snapshot(merged, total.sum(), max.get());
+    }
+
+    // Not atomic with the threads recording, a value recorded during a reset may be half kept
+    @Override
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        total.reset();
+        max.reset();
+    }
+
+    // MBean attributes, times in microseconds
+
+    @Override
+    public long getCount() {
+        return snapshot().count();
+    }
+
+    @Override
+    public double getMeanMicros() {
+        return snapshot().mean() / 1000.0;
+    }
+
+    @Override
+    public double getP50Micros() {
+        return snapshot().percentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getP99Micros() {
+        return snapshot().percentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getP999Micros() {
+        return snapshot().percentile(99.9) / 1000.0;
+    }
+
+    @Override
+    public double getMaxMicros() {
+        return snapshot().max() / 1000.0;
+    }
+
+    // The histogram at one point in time
+    public static class Snapshot {
+        private final long[] buckets;
+        private final long count;
+        private final long total;
+        private final long max;
+
+        Snapshot(long[] buckets, long total, long max) {
+            this.buckets = buckets;
+            long count = 0;
+            for (long n : buckets) {
+                count += n;
+            }
+            this.count = count;
+            this.total = total;
+            this.max = max;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        // Nanoseconds
+        public double mean() {
+            return count == 0 ? 0 : (double) total / count;
+        }
+
+        public long max() {
+            return max;
+        }
+
+        // The value below which percent % of the recorded values fall, in nanoseconds
+        public long percentile(double percent) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(count * percent / 100.0));
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return Math.min(highestIn(i), max);
+                }
+            }
+            return max;
+        }
+    }
+}
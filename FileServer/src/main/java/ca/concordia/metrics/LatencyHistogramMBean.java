@@ -0,0 +1,19 @@
+package ca.concordia.metrics;
+
+// What JMX shows of a LatencyHistogram, times in microseconds
+public interface LatencyHistogramMBean {
+
+    long getCount();
+
+    double getMeanMicros();
+
+    double getP50Micros();
+
+    double getP99Micros();
+
+    double getP999Micros();
+
+    double getMaxMicros();
+
+    void reset();
+}
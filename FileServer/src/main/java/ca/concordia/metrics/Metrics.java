@@ -0,0 +1,157 @@
+package ca.concordia.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import ca.concordia.filesystem.ShardedFileSystem;
+import ca.concordia.filesystem.device.CachedBlockDevice;
+import ca.concordia.log.Log;
+
+// Everything the server measures, always on. Recording is a LongAdder or a LatencyHistogram,
+// both striped so busy threads don't serialize on one counter and measuring doesn't change what's measured.
+// Read through the STATS command (report()) or JMX under ca.concordia (registerMBeans()).
+public final class Metrics {
+
+    // How long readers kept a version of a file, blocks it retired can't be reused meanwhile
+    public static final LatencyHistogram READ_SNAPSHOT = new LatencyHistogram("read.snapshot");
+    // How long a file lock was waited for and then held, only writers take them
+    public static final LatencyHistogram WRITE_LOCK_WAIT = new LatencyHistogram("lock.write.wait");
+    public static final LatencyHistogram WRITE_LOCK_HOLD = new LatencyHistogram("lock.write.hold");
+
+    // Time to run a command, from parsing it to having the reply, per protocol command
+    public static final LatencyHistogram CREATE = new LatencyHistogram("command.create");
+    public static final LatencyHistogram WRITE = new LatencyHistogram("command.write");
+    public static final LatencyHistogram READ = new LatencyHistogram("command.read");
+    public static final LatencyHistogram DELETE = new LatencyHistogram("command.delete");
+    public static final LatencyHistogram LIST = new LatencyHistogram("command.list");
+    public static final LatencyHistogram APPEND = new LatencyHistogram("command.append");
+    public static final LatencyHistogram PWRITE = new LatencyHistogram("command.pwrite");
+    public static final LatencyHistogram EXEC = new LatencyHistogram("command.exec");
+    public static final LatencyHistogram OTHER = new LatencyHistogram("command.other"); // the rest, and bad commands
+
+    private static final LatencyHistogram[] HISTOGRAMS = {CREATE, WRITE, READ, DELETE, LIST, APPEND, PWRITE, EXEC,
+            OTHER, READ_SNAPSHOT, WRITE_LOCK_WAIT, WRITE_LOCK_HOLD};
+
+    // Blocks the disk was asked for, under the cache so hits don't count
+    public static final LongAdder BLOCKS_READ = new LongAdder();
+    public static final LongAdder BLOCKS_WRITTEN = new LongAdder();
+    // writeMetaData() calls that had something to write, and how much (to the journal when there is one)
+    public static final LongAdder METADATA_FLUSHES = new LongAdder();
+    public static final LongAdder METADATA_FLUSH_BYTES = new LongAdder();
+    // Blocks a deduplicated image didn't write because it had them already
+    public static final LongAdder BLOCKS_DEDUPLICATED = new LongAdder();
+    // Data written to compressed files, and what it took once compressed
+    public static final LongAdder COMPRESSION_BYTES_IN = new LongAdder();
+    public static final LongAdder COMPRESSION_BYTES_STORED = new LongAdder();
+    // Journal commits made durable, one per group
+    public static final LongAdder JOURNAL_FORCES = new LongAdder();
+    // Network, both front ends
+    public static final LongAdder ACTIVE_CONNECTIONS = new LongAdder();
+    public static final LongAdder NET_BYTES_IN = new LongAdder();
+    public static final LongAdder NET_BYTES_OUT = new LongAdder();
+
+    private Metrics() {
+    }
+
+    // The histogram for a line protocol command, case doesn't matter
+    public static LatencyHistogram forCommand(String command) {
+        switch (command.toUpperCase()) {
+            case "CREATE":
+                return CREATE;
+            case "WRITE":
+                return WRITE;
+            case "READ":
+                return READ;
+            case "DELETE":
+                return DELETE;
+            case "LIST":
+                return LIST;
+            case "APPEND":
+                return APPEND;
+            case "PWRITE":
+                return PWRITE;
+            case "EXEC":
+                return EXEC;
+            default:
+                return OTHER;
+        }
+    }
+
+    // Bytes written to compressed files per byte it took to store them, 0 before any were
+    public static double compressionRatio() {
+        long stored = COMPRESSION_BYTES_STORED.sum();
+        return stored == 0 ? 0 : (double) COMPRESSION_BYTES_IN.sum() / stored;
+    }
+
+    // One line per metric: "name value" for the counters, "name count=... p50=... ..." for the histograms
+    public static List<String> report(ShardedFileSystem fsManager) {
+        List<String> lines = new ArrayList<>();
+        for (LatencyHistogram histogram : HISTOGRAMS) {
+            LatencyHistogram.Snapshot s = histogram.snapshot();
+            lines.add(String.format(Locale.ROOT, "%s count=%d mean=%.1fus p50=%.1fus p99=%.1fus p999=%.1fus max=%.1fus",
+                    histogram.getName(), s.count(), s.mean() / 1000.0, s.percentile(50) / 1000.0,
+                    s.percentile(99) / 1000.0, s.percentile(99.9) / 1000.0, s.max() / 1000.0));
+        }
+
+        lines.add("blocks.read " + BLOCKS_READ.sum());
+        lines.add("blocks.written " + BLOCKS_WRITTEN.sum());
+        lines.add("fs.shards " + fsManager.getShardCount());
+        lines.add("blocks.free " + fsManager.freeBlockCount());
+        lines.add("blocks.retired " + fsManager.retiredBlockCount());
+        lines.add("blocks.deduplicated " + BLOCKS_DEDUPLICATED.sum());
+        lines.add("compression.bytes.in " + COMPRESSION_BYTES_IN.sum());
+        lines.add("compression.bytes.stored " + COMPRESSION_BYTES_STORED.sum());
+        lines.add(String.format(Locale.ROOT, "compression.ratio %.2f", compressionRatio()));
+        lines.add("metadata.flushes " + METADATA_FLUSHES.sum());
+        lines.add("metadata.flush.bytes " + METADATA_FLUSH_BYTES.sum());
+        lines.add("journal.forces " + JOURNAL_FORCES.sum());
+        long[] cache = cacheCounters(fsManager);
+        if (cache != null) {
+            lines.add("cache.hits " + cache[0]);
+            lines.add("cache.misses " + cache[1]);
+            lines.add("cache.evictions " + cache[2]);
+        }
+        lines.add("net.connections " + ACTIVE_CONNECTIONS.sum());
+        lines.add("net.bytes.in " + NET_BYTES_IN.sum());
+        lines.add("net.bytes.out " + NET_BYTES_OUT.sum());
+        return lines;
+    }
+
+    // {hits, misses, evictions} of the block caches, summed over the shards. null if the cache is off
+    static long[] cacheCounters(ShardedFileSystem fsManager) {
+        long[] counters = null;
+        for (int s = 0; s < fsManager.getShardCount(); s++) {
+            CachedBlockDevice cache = fsManager.getShard(s).getBlockCache();
+            if (cache != null) {
+                if (counters == null) {
+                    counters = new long[3];
+                }
+                counters[0] += cache.hits();
+                counters[1] += cache.misses();
+                counters[2] += cache.evictions();
+            }
+        }
+        return counters;
+    }
+
+    // ca.concordia:type=ServerStats for the counters, ca.concordia:type=Latency,name=<histogram> for the rest.
+    // A failure is only logged, the server runs fine without JMX
+    public static void registerMBeans(ShardedFileSystem fsManager) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(new ServerStats(fsManager), new ObjectName("ca.concordia:type=ServerStats"));
+            for (LatencyHistogram histogram : HISTOGRAMS) {
+                server.registerMBean(histogram, new ObjectName("ca.concordia:type=Latency,name=" + histogram.getName()));
+            }
+        } catch (JMException e) {
+            Log.SERVER.warn("Could not register the metrics MBeans: {}", e.getMessage());
+        }
+    }
+}
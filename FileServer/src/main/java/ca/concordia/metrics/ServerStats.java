@@ -0,0 +1,82 @@
+package ca.concordia.metrics;
+
+import ca.concordia.filesystem.ShardedFileSystem;
+
+public class ServerStats implements ServerStatsMBean {
+
+    private final ShardedFileSystem fsManager;
+
+    public ServerStats(ShardedFileSystem fsManager) {
+        this.fsManager = fsManager;
+    }
+
+    @Override
+    public long getBlocksRead() {
+        return Metrics.BLOCKS_READ.sum();
+    }
+
+    @Override
+    public long getBlocksWritten() {
+        return Metrics.BLOCKS_WRITTEN.sum();
+    }
+
+    @Override
+    public long getMetadataFlushes() {
+        return Metrics.METADATA_FLUSHES.sum();
+    }
+
+    @Override
+    public long getMetadataFlushBytes() {
+        return Metrics.METADATA_FLUSH_BYTES.sum();
+    }
+
+    @Override
+    public long getJournalForces() {
+        return Metrics.JOURNAL_FORCES.sum();
+    }
+
+    @Override
+    public long getFreeBlocks() {
+        return fsManager.freeBlockCount();
+    }
+
+    @Override
+    public long getRetiredBlocks() {
+        return fsManager.retiredBlockCount();
+    }
+
+    @Override
+    public long getActiveConnections() {
+        return Metrics.ACTIVE_CONNECTIONS.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return Metrics.NET_BYTES_IN.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return Metrics.NET_BYTES_OUT.sum();
+    }
+
+    // The cache ones are 0 when the cache is off
+
+    @Override
+    public long getCacheHits() {
+        long[] cache = Metrics.cacheCounters(fsManager);
+        return cache == null ? 0 : cache[0];
+    }
+
+    @Override
+    public long getCacheMisses() {
+        long[] cache = Metrics.cacheCounters(fsManager);
+        return cache == null ? 0 : cache[1];
+    }
+
+    @Override
+    public long getCacheEvictions() {
+        long[] cache = Metrics.cacheCounters(fsManager);
+        return cache == null ? 0 : cache[2];
+    }
+}
@@ -0,0 +1,31 @@
+package ca.concordia.metrics;
+
+// The server's counters and gauges as JMX attributes, see Metrics
+public interface ServerStatsMBean {
+
+    long getBlocksRead();
+
+    long getBlocksWritten();
+
+    long getMetadataFlushes();
+
+    long getMetadataFlushBytes();
+
+    long getJournalForces();
+
+    long getFreeBlocks();
+
+    long getRetiredBlocks();
+
+    long getActiveConnections();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    long getCacheEvictions();
+}
@@ -0,0 +1,248 @@
+package ca.concordia.server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+import ca.concordia.filesystem.ShardedFileSystem;
+import ca.concordia.filesystem.RangeChannel;
+import ca.concordia.metrics.LatencyHistogram;
+import ca.concordia.metrics.Metrics;
+
+// Binary framing, switched to by sending BINARY on the line protocol. A request is
+//
+//   opcode (1 byte) | name length (2 bytes) | name (UTF-8) | body length (4 bytes) | body
+//
+// (a READ with an 8 byte body reads the range offset (4 bytes) | length (4 bytes) instead of the whole file)
+// and a reply is the body as chunks of  length (4 bytes) | bytes,  then a trailer: length 0 means
+// success, a negative length means failure and is followed by -length bytes of UTF-8 error message.
+// File bodies are copied between the socket and the disk a chunk at a time, so a transfer never
+// needs the whole file on the heap, and the bytes go through as they are.
+// When the socket's channel is there, a READ is one chunk sent from the disk image straight to the socket
+// (RangeChannel.transferTo, sendfile). If that fails halfway the chunk can't be finished, so the connection is dropped.
+class BinaryProtocol {
+
+    static final int CREATE = 1;
+    static final int WRITE = 2;
+    static final int READ = 3;
+    static final int DELETE = 4;
+    static final int LIST = 5;
+    static final int QUIT = 6;
+    static final int APPEND = 7;
+    static final int PWRITE = 8; // body is the offset (4 bytes) then the data
+
+    private final ShardedFileSystem fsManager;
+
+    BinaryProtocol(ShardedFileSystem fsManager) {
+        this.fsManager = fsManager;
+    }
+
+    // Handles requests until QUIT or the client closes the connection.
+    // socket is the channel under out for zero-copy READs, null to always copy through out
+    void serve(DataInputStream in, DataOutputStream out, WritableByteChannel socket) throws IOException {
+        while (true) {
+            int opcode = in.read();
+            if (opcode == -1) {
+                return;
+            }
+
+            byte[] name = new byte[in.readUnsignedShort()];
+            in.readFully(name);
+            int bodyLength = in.readInt();
+            if (bodyLength < 0) {
+                throw new IOException("Invalid body length: " + bodyLength);
+            }
+
+            long start = System.nanoTime();
+            Body body = new Body(in, bodyLength);
+            handle(opcode, new String(name, StandardCharsets.UTF_8), body, out, socket);
+            body.skipRemaining(); // a failed request can leave its body unread
+            out.flush();
+            histogramFor(opcode).recordSince(start); // with the body streamed in and the reply out
+
+            if (opcode == QUIT) {
+                return;
+            }
+        }
+    }
+
+    private void handle(int opcode, String name, Body body, DataOutputStream out, WritableByteChannel socket)
+            throws IOException {
+        Chunks reply = new Chunks(out);
+        try {
+            switch (opcode) {
+                case CREATE:
+                    fsManager.createFile(name);
+                    break;
+
+                case WRITE:
+                    fsManager.writeFile(name, body, body.remaining);
+                    break;
+
+                case READ:
+                    int offset = 0;
+                    int length = Integer.MAX_VALUE;
+                    if (body.remaining == 8) {
+                        DataInputStream range = new DataInputStream(body);
+                        offset = range.readInt();
+                        length = range.readInt();
+                    }
+                    if (socket != null) {
+                        send(name, offset, length, out, socket);
+                    } else {
+                        fsManager.readFile(name, offset, length, reply);
+                    }
+                    break;
+
+                case APPEND:
+                    fsManager.appendFile(name, body, body.remaining);
+                    break;
+
+                case PWRITE:
+                    int at = new DataInputStream(body).readInt();
+                    fsManager.writeFileAt(name, at, body, body.remaining);
+                    break;
+
+                case DELETE:
+                    // a 1 byte body set to 1 asks for a secure delete
+                    fsManager.deleteFile(name, body.remaining == 1 && body.read() == 1);
+                    break;
+
+                case LIST:
+                    reply.write(String.join("\n", fsManager.listFiles()).getBytes(StandardCharsets.UTF_8));
+                    break;
+
+                case QUIT:
+                    break;
+
+                default:
+                    throw new Exception("Unknown opcode " + opcode);
+            }
+            out.writeInt(0);
+
+        } catch (BrokenReply ex) {
+            throw ex;
+
+        } catch (Exception ex) {
+            String text = (ex.getMessage() == null || ex.getMessage().isEmpty()) ? ex.toString() : ex.getMessage();
+            byte[] message = text.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(-message.length);
+            out.write(message);
+        }
+    }
+
+    // The whole range as one chunk: its length goes through out, then the bytes straight to the socket
+    private void send(String name, int offset, int length, DataOutputStream out, WritableByteChannel socket)
+            throws Exception {
+        try (RangeChannel file = fsManager.openRead(name, offset, length)) {
+            int size = file.remaining();
+            if (size == 0) {
+                return;
+            }
+            out.writeInt(size);
+            out.flush();
+            try {
+                Metrics.NET_BYTES_OUT.add(file.transferTo(socket));
+            } catch (IOException e) {
+                throw new BrokenReply(e);
+            }
+        }
+    }
+
+    // A reply that stopped partway, nothing more can be sent on this connection
+    private static class BrokenReply extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        BrokenReply(IOException cause) {
+            super("Reply cut short: " + cause.getMessage(), cause);
+        }
+    }
+
+    private static LatencyHistogram histogramFor(int opcode) {
+        switch (opcode) {
+            case CREATE:
+                return Metrics.CREATE;
+            case WRITE:
+                return Metrics.WRITE;
+            case READ:
+                return Metrics.READ;
+            case DELETE:
+                return Metrics.DELETE;
+            case LIST:
+                return Metrics.LIST;
+            case APPEND:
+                return Metrics.APPEND;
+            case PWRITE:
+                return Metrics.PWRITE;
+            default:
+                return Metrics.OTHER;
+        }
+    }
+
+    // The request body, stops after length bytes so the next frame is left alone
+    private static class Body extends InputStream {
+        private final InputStream in;
+        private int remaining;
+
+        Body(InputStream in, int length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b != -1) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int n = in.read(b, off, Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+
+        void skipRemaining() throws IOException {
+            in.skipNBytes(remaining);
+            remaining = 0;
+        }
+    }
+
+    // Sends every write as one chunk of the reply body
+    private static class Chunks extends OutputStream {
+        private final DataOutputStream out;
+
+        Chunks(DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.writeInt(1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > 0) {
+                out.writeInt(len);
+                out.write(b, off, len);
+            }
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package ca.concordia.server;
+
+// How FileServer runs its ClientHandlers
+public enum ConnectionMode {
+    // One virtual thread per client. Blocking socket reads park the virtual thread instead of
+    // holding an OS thread, so thousands of mostly idle clients are cheap.
+    VIRTUAL,
+    // A fixed pool of platform threads. Clients past the pool size wait in the queue until
+    // another client disconnects, so keep it for short lived connections.
+    POOLED,
+    // A new platform thread per client, what the server always did
+    THREAD_PER_CLIENT
+}
@@ -1,162 +1,245 @@
 package ca.concordia.server;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.DiskGeometry;
+import ca.concordia.filesystem.MountOptions;
+import ca.concordia.filesystem.ShardedFileSystem;
+import ca.concordia.log.Log;
+import ca.concordia.metrics.Metrics;
 
 public class FileServer {
 
-    private FileSystemManager fsManager;
+    private static final long ACCEPT_BACKOFF_MS = 100; // pause after a failed accept instead of spinning on it
+
+    private ShardedFileSystem fsManager;
+    private ProtocolHandler protocol;
+    private BinaryProtocol binaryProtocol;
     private final int port;
+    private final ServerOptions serverOptions;
 
     public FileServer(int port, String fileSystemName, int totalSize) {
-        // Initialize the FileSystemManager
+        this(port, fileSystemName, DiskGeometry.forSize(totalSize));
+    }
+
+    public FileServer(int port, String fileSystemName, DiskGeometry geometry) {
+        this(port, fileSystemName, geometry, new MountOptions());
+    }
+
+    public FileServer(int port, String fileSystemName, DiskGeometry geometry, MountOptions options) {
+        this(port, fileSystemName, geometry, options, new ServerOptions());
+    }
+
+    public FileServer(int port, String fileSystemName, DiskGeometry geometry, MountOptions options,
+            ServerOptions serverOptions) {
+        // Initialize the FileSystemManagers, one per shard
         try {
-            this.fsManager = new FileSystemManager(fileSystemName, totalSize);
+            this.fsManager = new ShardedFileSystem(fileSystemName, geometry, options);
+            for (int s = 0; s < fsManager.getShardCount(); s++) {
+                Log.FS.info("Mounted {}: {}", fsManager.getImageName(s), fsManager.getShard(s).getGeometry());
+            }
+            Metrics.registerMBeans(fsManager);
+            this.protocol = new ProtocolHandler(fsManager);
+            this.binaryProtocol = new BinaryProtocol(fsManager);
 
         } catch (Exception e) {
-            System.out.println("FileSystemManager failed to init" + e);
+            Log.SERVER.error("FileSystemManager failed to init", e);
         }
 
         this.port = port;
+        this.serverOptions = serverOptions;
     }
 
     public void start() {
-        try (ServerSocket serverSocket = new ServerSocket(12345)) {
-            System.out.println("Server started. Listening on port 12345...");
+        if (serverOptions.getFrontEnd() == FrontEnd.SELECTOR) {
+            try {
+                new SelectorServer(port, serverOptions, protocol).run();
+            } catch (Exception e) {
+                Log.SERVER.error("Could not start server on port {}", port, e);
+            }
+            return;
+        }
+
+        // Accepted through a channel so each client socket has one, BinaryProtocol sends READs straight to it
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open();
+                ExecutorService executor = createExecutor()) {
+            serverChannel.bind(new InetSocketAddress(port), serverOptions.getBacklog());
+            Log.SERVER.info("Server started. Listening on port {} ({})...", port, serverOptions.getConnectionMode());
 
             while (true) {
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("Handling client: " + clientSocket);
+                Socket clientSocket;
+                try {
+                    clientSocket = serverChannel.accept().socket();
+                } catch (ClosedChannelException e) {
+                    throw e;
+                } catch (IOException e) {
+                    // Out of file descriptors, client gone before we got to it... wait a bit and keep going
+                    Log.SERVER.warn("Could not accept a client: {}", e.getMessage());
+                    Thread.sleep(ACCEPT_BACKOFF_MS);
+                    continue;
+                }
+                try {
+                    // Replies are already batched by the flushes, Nagle would only hold back the tail of a big one
+                    clientSocket.setTcpNoDelay(true);
+                } catch (IOException e) {
+                    Log.SERVER.warn("Could not set up client {}: {}", clientSocket, e.getMessage());
+                    clientSocket.close();
+                    continue;
+                }
 
-                ClientHandler clientHandler = new ClientHandler(clientSocket, fsManager);
-                Thread clientThread = new Thread(clientHandler);
-                clientThread.start();
+                ClientHandler clientHandler = new ClientHandler(clientSocket, protocol, binaryProtocol);
+                executor.execute(clientHandler);
             }
 
         } catch (Exception e) {
-            e.printStackTrace();
-            System.err.println("Could not start server on port " + port);
+            Log.SERVER.error("Could not start server on port {}", port, e);
+        }
+    }
+
+    // Nothing on the request path holds a monitor (the filesystem uses java.util.concurrent locks
+    // and positional I/O), so blocking in a virtual thread unmounts it instead of pinning its carrier.
+    private ExecutorService createExecutor() {
+        switch (serverOptions.getConnectionMode()) {
+            case VIRTUAL:
+                return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("client-", 0).factory());
+            case POOLED:
+                return Executors.newFixedThreadPool(serverOptions.getPoolSize(),
+                        Thread.ofPlatform().name("client-pool-", 0).factory());
+            default:
+                return Executors.newThreadPerTaskExecutor(Thread.ofPlatform().name("client-", 0).factory());
         }
     }
 
 
     private static class ClientHandler implements Runnable {
         private final Socket clientSocket;
-        private final FileSystemManager fsManager;
+        private final ProtocolHandler protocol;
+        private final BinaryProtocol binaryProtocol;
 
-        public ClientHandler(Socket clientSocket, FileSystemManager fsManager) {
+        public ClientHandler(Socket clientSocket, ProtocolHandler protocol, BinaryProtocol binaryProtocol) {
             this.clientSocket = clientSocket;
-            this.fsManager = fsManager;
+            this.protocol = protocol;
+            this.binaryProtocol = binaryProtocol;
         }
 
         @Override
         public void run() {
-            try (BufferedReader reader =
-                    new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                    PrintWriter writer = new PrintWriter(clientSocket.getOutputStream(), true)) {
-                System.out.println("Thread: " + Thread.currentThread().getName()
-                        + " handling client: " + clientSocket);
-
+            // Lines are read off the byte stream by hand so nothing past a BINARY line gets buffered as text.
+            // Replies are only flushed once every command the client has sent so far is answered,
+            // so a client that pipelines its commands gets the replies back in one write.
+            Metrics.ACTIVE_CONNECTIONS.increment();
+            try (InputStream in = new BufferedInputStream(new CountingInputStream(clientSocket.getInputStream()));
+                    OutputStream out = new BufferedOutputStream(new CountingOutputStream(clientSocket.getOutputStream()));
+                    PrintWriter writer = new PrintWriter(out)) {
+                Log.SERVER.debug("Handling client: {}", clientSocket);
+
+                ProtocolHandler.Session session = new ProtocolHandler.Session();
                 String commandline;
-                while ((commandline = reader.readLine()) != null) {
-                    System.out.println("Thread:" + Thread.currentThread().getName()
-                            + "Received commandline from client: " + commandline);
-                    handleCommand(commandline, writer);
+                while ((commandline = readLine(in)) != null) {
+                    Log.PROTOCOL.debug("Received commandline from client: {}", commandline);
+
+                    if (ProtocolHandler.isBinarySwitch(commandline)) {
+                        writer.println(ProtocolHandler.BINARY_REPLY);
+                        writer.flush();
+                        binaryProtocol.serve(new DataInputStream(in), new DataOutputStream(out), clientSocket.getChannel());
+                        break;
+                    }
+                    writer.println(protocol.handleCommand(commandline, session));
+                    if (in.available() == 0) {
+                        writer.flush();
+                    }
                 }
 
             } catch (Exception ex) {
-                System.err.println("Error handling cilent" + clientSocket + ": " + ex.getMessage());
-                ex.printStackTrace();
+                Log.SERVER.warn("Error handling cilent {}: {}", clientSocket, ex.getMessage(), ex);
 
             } finally {
+                Metrics.ACTIVE_CONNECTIONS.decrement();
                 try {
                     clientSocket.close();
-                    System.out.println("Client disconnected:" + clientSocket);
+                    Log.SERVER.debug("Client disconnected: {}", clientSocket);
                 } catch (Exception ex) {
-                    System.err.println(ex.getMessage());
+                    Log.SERVER.warn("Could not close client {}", clientSocket, ex);
                 }
             }
         }
 
-        private void handleCommand(String commandline, PrintWriter writer) {
-            try {
-                String[] parts = commandline.split(" ", 3);
-                String command = parts[0].toUpperCase();
-
-                switch (command) {
-                    case "CREATE":
-                        if (parts.length < 2) {
-                            writer.println("Please write under the format CREATE < filename>");
-                            break;
-                        }
-                        if (parts[1].length() > 11) {
-                            writer.println("Please write a filename of 11 characters or under");
-                            break;
-                        }
-                        fsManager.createFile(parts[1]);
-                        writer.println("SUCCESS: File '" + parts[1] + "' created.");
-                        writer.flush();
-                        break;
-
-                    case "WRITE":
-                        if (parts.length < 3) {
-                            writer.println(
-                                    "Please write under the format WRITE: <file Name> <Content>");
-                            break;
-                        }
-
-                        fsManager.writeFile(parts[1], parts[2].getBytes(StandardCharsets.UTF_8));
-                        writer.println("Success: File " + parts[1] + " has been written to.");
-                        break;
+        // One UTF-8 line without its line ending, or null at the end of the stream
+        private static String readLine(InputStream in) throws Exception {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != -1 && b != '\n') {
+                line.write(b);
+            }
+            if (b == -1 && line.size() == 0) {
+                return null;
+            }
 
-                    case "READ":
-                        if (parts.length < 2) {
-                            writer.println("Please write under the format: READ <filename>");
-                            break;
-                        }
+            byte[] bytes = line.toByteArray();
+            int length = (bytes.length > 0 && bytes[bytes.length - 1] == '\r') ? bytes.length - 1 : bytes.length;
+            return new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+    }
 
-                        byte[] data = fsManager.readFile(parts[1]);
-                        writer.println(
-                                "Success reading: " + new String(data, StandardCharsets.UTF_8));
-                        break;
+    // Socket streams that add what goes through them to Metrics.NET_BYTES_IN/OUT.
+    // They sit under the buffers, so it's one add per socket read or write
 
-                    case "DELETE":
-                        if (parts.length < 2) {
-                            writer.println("lease write under the format: DELETE <filename>");
-                            break;
-                        }
+    private static class CountingInputStream extends FilterInputStream {
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
 
-                        fsManager.deleteFile(parts[1]);
-                        writer.println("Success: File " + parts[1] + " has been delete.");
-                        break;
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                Metrics.NET_BYTES_IN.increment();
+            }
+            return b;
+        }
 
-                    case "LIST":
-                        String[] files = fsManager.listFiles();
-                        if (files.length == 0) {
-                            writer.println("Files not found...");
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                Metrics.NET_BYTES_IN.add(n);
+            }
+            return n;
+        }
+    }
 
-                        } else {
-                            writer.println("Files: " + String.join(", ", files));
-                        }
-                        break;
+    private static class CountingOutputStream extends FilterOutputStream {
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
 
-                    case "QUIT":
-                        writer.println("SUCCESS: Disconnecting.");
-                        return;
-                    default:
-                        writer.println("ERROR: Unknown command.");
-                        break;
-                }
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            Metrics.NET_BYTES_OUT.increment();
+        }
 
-            } catch (Exception ex) {
-                writer.println("ERROR: " + ex.getMessage());
-            }
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            Metrics.NET_BYTES_OUT.add(len);
         }
     }
 }
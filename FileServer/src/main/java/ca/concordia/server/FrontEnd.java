@@ -0,0 +1,10 @@
+package ca.concordia.server;
+
+// How FileServer takes in connections
+public enum FrontEnd {
+    // ServerSocket.accept() and a blocking reader per client, run according to the ConnectionMode
+    BLOCKING,
+    // One selector thread does all the socket I/O, commands run on a worker pool.
+    // Suits lots of connections that send little.
+    SELECTOR
+}
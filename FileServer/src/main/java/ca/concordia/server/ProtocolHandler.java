@@ -0,0 +1,240 @@
+package ca.concordia.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import ca.concordia.filesystem.Batch;
+import ca.concordia.filesystem.ShardedFileSystem;
+import ca.concordia.metrics.Metrics;
+
+// The line protocol (CREATE/WRITE/READ/APPEND/PWRITE/DELETE/LIST/STATS/QUIT), shared by the blocking
+// ClientHandler and the selector front end. Takes one command line, returns the reply line.
+// BINARY switches a blocking connection over to BinaryProtocol.
+//
+// MULTI starts a batch: CREATE and WRITE are answered QUEUED instead of running, and EXEC runs them all
+// with one lock acquisition and one metadata flush per shard (ShardedFileSystem.runBatch). EXEC answers with
+// a line saying how many ran, then one reply line per command. DISCARD drops the batch.
+// STATS answers the same way with the server's metrics (see Metrics), and every command's time is recorded there.
+class ProtocolHandler {
+
+    private final ShardedFileSystem fsManager;
+
+    static final String BINARY_REPLY = "SUCCESS: Switching to binary protocol.";
+    static final int MAX_BATCH = 1024; // commands queued between MULTI and EXEC
+
+    // What the protocol remembers about a connection between commands
+    static class Session {
+        private Batch batch; // queued commands after MULTI, null outside a batch
+    }
+
+    ProtocolHandler(ShardedFileSystem fsManager) {
+        this.fsManager = fsManager;
+    }
+
+    static boolean isBinarySwitch(String commandline) {
+        return commandline.trim().equalsIgnoreCase("BINARY");
+    }
+
+    String handleCommand(String commandline, Session session) {
+        String[] parts = commandline.split(" ", 3);
+        String command = parts[0].toUpperCase();
+
+        if (session.batch != null && !command.equals("EXEC") && !command.equals("DISCARD")
+                && !command.equals("QUIT")) {
+            return queue(parts, command, session.batch);
+        }
+
+        long start = System.nanoTime();
+        String reply = run(parts, command, session);
+        Metrics.forCommand(command).recordSince(start);
+        return reply;
+    }
+
+    private String run(String[] parts, String command, Session session) {
+        try {
+            switch (command) {
+                case "CREATE":
+                    String invalidCreate = checkCreate(parts);
+                    if (invalidCreate != null) {
+                        return invalidCreate;
+                    }
+                    fsManager.createFile(parts[1]);
+                    return created(parts[1]);
+
+                case "WRITE":
+                    String invalidWrite = checkWrite(parts);
+                    if (invalidWrite != null) {
+                        return invalidWrite;
+                    }
+
+                    fsManager.writeFile(parts[1], parts[2].getBytes(StandardCharsets.UTF_8));
+                    return written(parts[1]);
+
+                case "READ":
+                    if (parts.length < 2) {
+                        return "Please write under the format: READ <filename> [<offset> <length>]";
+                    }
+
+                    byte[] data;
+                    if (parts.length == 3) {
+                        String[] range = parts[2].trim().split(" +");
+                        if (range.length != 2) {
+                            return "Please write under the format: READ <filename> [<offset> <length>]";
+                        }
+                        data = fsManager.readFile(parts[1], Integer.parseInt(range[0]), Integer.parseInt(range[1]));
+                    } else {
+                        data = fsManager.readFile(parts[1]);
+                    }
+                    return "Success reading: " + new String(data, StandardCharsets.UTF_8);
+
+                case "APPEND":
+                    if (parts.length < 3) {
+                        return "Please write under the format: APPEND <filename> <Content>";
+                    }
+
+                    fsManager.appendFile(parts[1], parts[2].getBytes(StandardCharsets.UTF_8));
+                    return "Success: File " + parts[1] + " has been appended to.";
+
+                case "PWRITE":
+                    String[] offsetAndContent = parts.length < 3 ? new String[0] : parts[2].split(" ", 2);
+                    if (offsetAndContent.length < 2) {
+                        return "Please write under the format: PWRITE <filename> <offset> <Content>";
+                    }
+
+                    fsManager.writeFileAt(parts[1], Integer.parseInt(offsetAndContent[0]),
+                            offsetAndContent[1].getBytes(StandardCharsets.UTF_8));
+                    return "Success: File " + parts[1] + " has been written to at offset " + offsetAndContent[0] + ".";
+
+                case "DELETE":
+                    if (parts.length < 2) {
+                        return "lease write under the format: DELETE <filename> [SECURE]";
+                    }
+
+                    // SECURE zeroes the blocks before answering instead of leaving them to the scrubber
+                    fsManager.deleteFile(parts[1], parts.length == 3 && parts[2].trim().equalsIgnoreCase("SECURE"));
+                    return "Success: File " + parts[1] + " has been delete.";
+
+                case "LIST":
+                    String[] files = fsManager.listFiles();
+                    if (files.length == 0) {
+                        return "Files not found...";
+                    }
+                    return "Files: " + String.join(", ", files);
+
+                case "MULTI":
+                    session.batch = new Batch();
+                    return "SUCCESS: Batch started, send CREATE/WRITE commands then EXEC.";
+
+                case "EXEC":
+                    if (session.batch == null) {
+                        return "ERROR: EXEC without MULTI.";
+                    }
+                    Batch batch = session.batch;
+                    session.batch = null;
+                    return exec(batch);
+
+                case "DISCARD":
+                    if (session.batch == null) {
+                        return "ERROR: DISCARD without MULTI.";
+                    }
+                    session.batch = null;
+                    return "SUCCESS: Batch discarded.";
+
+                case "STATS":
+                    return stats();
+
+                case "QUIT":
+                    session.batch = null;
+                    return "SUCCESS: Disconnecting.";
+
+                case "BINARY":
+                    // The blocking ClientHandler switches before it gets here
+                    return "ERROR: Binary mode is only available with the blocking front end.";
+
+                default:
+                    return "ERROR: Unknown command.";
+            }
+
+        } catch (Exception ex) {
+            return "ERROR: " + ex.getMessage();
+        }
+    }
+
+    // Between MULTI and EXEC: checks a command and adds it to the batch instead of running it
+    private String queue(String[] parts, String command, Batch batch) {
+        if (!command.equals("CREATE") && !command.equals("WRITE")) {
+            return "ERROR: Only CREATE and WRITE can be batched, send EXEC or DISCARD to finish.";
+        }
+        if (batch.size() == MAX_BATCH) {
+            return "ERROR: Batch is full, " + MAX_BATCH + " commands at most.";
+        }
+
+        if (command.equals("CREATE")) {
+            String invalid = checkCreate(parts);
+            if (invalid != null) {
+                return invalid;
+            }
+            batch.create(parts[1]);
+        } else {
+            String invalid = checkWrite(parts);
+            if (invalid != null) {
+                return invalid;
+            }
+            batch.write(parts[1], parts[2].getBytes(StandardCharsets.UTF_8));
+        }
+        return "QUEUED";
+    }
+
+    private String exec(Batch batch) throws Exception {
+        Exception[] results = fsManager.runBatch(batch);
+
+        StringBuilder reply = new StringBuilder("SUCCESS: Batch of " + batch.size() + " command(s) executed.");
+        for (int i = 0; i < batch.size(); i++) {
+            reply.append('\n');
+            if (results[i] != null) {
+                reply.append("ERROR: ").append(results[i].getMessage());
+            } else if (batch.isCreate(i)) {
+                reply.append(created(batch.getFileName(i)));
+            } else {
+                reply.append(written(batch.getFileName(i)));
+            }
+        }
+        return reply.toString();
+    }
+
+    // Same layout as EXEC: a line with the count, then one line per metric
+    private String stats() {
+        List<String> lines = Metrics.report(fsManager);
+        StringBuilder reply = new StringBuilder("SUCCESS: " + lines.size() + " stat line(s).");
+        for (String line : lines) {
+            reply.append('\n').append(line);
+        }
+        return reply.toString();
+    }
+
+    // Usage message if the arguments are wrong, null if they're fine
+    private static String checkCreate(String[] parts) {
+        if (parts.length < 2) {
+            return "Please write under the format CREATE < filename>";
+        }
+        if (parts[1].length() > 11) {
+            return "Please write a filename of 11 characters or under";
+        }
+        return null;
+    }
+
+    private static String checkWrite(String[] parts) {
+        if (parts.length < 3) {
+            return "Please write under the format WRITE: <file Name> <Content>";
+        }
+        return null;
+    }
+
+    private static String created(String fileName) {
+        return "SUCCESS: File '" + fileName + "' created.";
+    }
+
+    private static String written(String fileName) {
+        return "Success: File " + fileName + " has been written to.";
+    }
+}
@@ -0,0 +1,283 @@
+package ca.concordia.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ca.concordia.log.Log;
+import ca.concordia.metrics.Metrics;
+
+// Non-blocking front end. One thread owns the Selector: it accepts connections, reads whatever
+// bytes are there and cuts them into command lines. The filesystem calls block, so commands run
+// on a worker pool, at most one task per connection at a time so the replies stay in order.
+// Finished replies are handed back to the selector thread and sent with gathering writes.
+class SelectorServer {
+
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_LINE_LENGTH = 64 * 1024 * 1024;
+    // Stop reading from a client that isn't reading its replies
+    private static final int MAX_PENDING_REPLIES = 1024;
+    // After a failed accept, wait this long before trying again instead of spinning on the same error
+    private static final long ACCEPT_BACKOFF_MS = 100;
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    private final int port;
+    private final ServerOptions options;
+    private final ProtocolHandler protocol;
+
+    private Selector selector;
+    private ExecutorService workers;
+    private SelectionKey acceptKey;
+    private long acceptResume = 0; // System.nanoTime() to start accepting again, 0 while accepting
+    // Connections with replies waiting to be picked up by the selector thread
+    private final ConcurrentLinkedQueue<Connection> readyToWrite = new ConcurrentLinkedQueue<>();
+
+    SelectorServer(int port, ServerOptions options, ProtocolHandler protocol) {
+        this.port = port;
+        this.options = options;
+        this.protocol = protocol;
+    }
+
+    void run() throws IOException {
+        try (Selector selector = Selector.open();
+                ServerSocketChannel serverChannel = ServerSocketChannel.open();
+                ExecutorService workers = Executors.newFixedThreadPool(options.getPoolSize(),
+                        Thread.ofPlatform().name("selector-worker-", 0).factory())) {
+            this.selector = selector;
+            this.workers = workers;
+
+            serverChannel.bind(new InetSocketAddress(port), options.getBacklog());
+            serverChannel.configureBlocking(false);
+            acceptKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            Log.SERVER.info("Server started. Listening on port {} (selector, {} workers)...", port, options.getPoolSize());
+
+            while (true) {
+                if (acceptResume == 0) {
+                    selector.select();
+                } else {
+                    selector.select(Math.max(1, (acceptResume - System.nanoTime()) / 1_000_000));
+                    if (System.nanoTime() - acceptResume >= 0) {
+                        acceptResume = 0;
+                        acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+                    }
+                }
+
+                Connection ready;
+                while ((ready = readyToWrite.poll()) != null) {
+                    ready.handleWrite();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isAcceptable()) {
+                        accept(serverChannel);
+                        continue;
+                    }
+
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.handleRead();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.handleWrite();
+                        }
+                    } catch (IOException ex) {
+                        Log.SERVER.warn("Error handling cilent {}: {}", connection.channel, ex.getMessage());
+                        connection.close();
+                    }
+                }
+            }
+        }
+    }
+
+    // A failed accept (out of file descriptors, client gone before we got to it...) doesn't stop the server,
+    // accepting just pauses for ACCEPT_BACKOFF_MS
+    private void accept(ServerSocketChannel serverChannel) {
+        while (true) {
+            SocketChannel channel = null;
+            try {
+                channel = serverChannel.accept();
+                if (channel == null) {
+                    return;
+                }
+                Log.SERVER.debug("Handling client: {}", channel);
+                channel.configureBlocking(false);
+                // Replies go out in gathering writes already
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new Connection(channel, key));
+                Metrics.ACTIVE_CONNECTIONS.increment();
+            } catch (IOException ex) {
+                Log.SERVER.warn("Could not accept a client: {}", ex.getMessage());
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException closing) {
+                        Log.SERVER.warn("Could not close client {}", channel, closing);
+                    }
+                }
+                // Stop accepting for a bit, the selector would only report the same client right away
+                acceptKey.interestOps(0);
+                acceptResume = System.nanoTime() + ACCEPT_BACKOFF_MS * 1_000_000;
+                return;
+            }
+        }
+    }
+
+    private class Connection implements Runnable {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+
+        // Selector thread only
+        private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private int scanned = 0; // bytes of in already checked for a newline
+        private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>(); // replies being written
+        private boolean inputClosed = false; // the client shut down its side
+        private boolean closed = false;
+
+        // Shared between the selector thread and the worker
+        private final ConcurrentLinkedQueue<String> commands = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<ByteBuffer> replies = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean running = new AtomicBoolean();
+        private final ProtocolHandler.Session session = new ProtocolHandler.Session(); // used by one task at a time
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        // Reads what's available and queues every complete line as a command
+        void handleRead() throws IOException {
+            int read = channel.read(in);
+            if (read < 0) {
+                // The client is done sending, but may still be waiting for replies
+                inputClosed = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                closeIfDone();
+                return;
+            }
+            Metrics.NET_BYTES_IN.add(read);
+
+            int lineStart = 0;
+            for (int i = scanned; i < in.position(); i++) {
+                if (in.get(i) == '\n') {
+                    int lineEnd = (i > lineStart && in.get(i - 1) == '\r') ? i - 1 : i;
+                    commands.add(new String(in.array(), lineStart, lineEnd - lineStart, StandardCharsets.UTF_8));
+                    lineStart = i + 1;
+                }
+            }
+
+            // Keep the unfinished line at the front of the buffer
+            in.flip().position(lineStart);
+            in.compact();
+            scanned = in.position();
+
+            if (!in.hasRemaining()) {
+                if (in.capacity() >= MAX_LINE_LENGTH) {
+                    throw new IOException("Command line too long");
+                }
+                ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+                in = bigger.put(in.flip());
+            }
+
+            if (lineStart > 0) {
+                schedule();
+            }
+        }
+
+        private void schedule() {
+            if (!commands.isEmpty() && running.compareAndSet(false, true)) {
+                workers.execute(this);
+            }
+        }
+
+        // Worker: runs every queued command in order, then hands the replies to the selector thread in one go
+        @Override
+        public void run() {
+            String commandline;
+            while ((commandline = commands.poll()) != null) {
+                byte[] reply = protocol.handleCommand(commandline, session).getBytes(StandardCharsets.UTF_8);
+                replies.add(ByteBuffer.allocate(reply.length + NEWLINE.length).put(reply).put(NEWLINE).flip());
+            }
+            // Not running any more before the selector thread looks, so it can tell when a closed client is done
+            running.set(false);
+            readyToWrite.add(this);
+            selector.wakeup();
+
+            schedule(); // commands that came in after the last poll
+        }
+
+        // Sends as many queued replies as the socket takes, and waits for OP_WRITE for the rest
+        void handleWrite() {
+            if (!key.isValid()) {
+                return;
+            }
+
+            ByteBuffer reply;
+            while ((reply = replies.poll()) != null) {
+                pending.add(reply);
+            }
+
+            try {
+                if (!pending.isEmpty()) {
+                    Metrics.NET_BYTES_OUT.add(channel.write(pending.toArray(new ByteBuffer[0])));
+                    while (!pending.isEmpty() && !pending.peek().hasRemaining()) {
+                        pending.poll();
+                    }
+                }
+
+                int ops = pending.isEmpty() ? 0 : SelectionKey.OP_WRITE;
+                if (pending.size() < MAX_PENDING_REPLIES && !inputClosed) {
+                    ops |= SelectionKey.OP_READ;
+                }
+                key.interestOps(ops);
+                closeIfDone();
+
+            } catch (IOException ex) {
+                Log.SERVER.warn("Error handling cilent {}: {}", channel, ex.getMessage());
+                close();
+            }
+        }
+
+        // After the client shut down its side: close once every command has run and its reply is sent
+        private void closeIfDone() {
+            if (inputClosed && !running.get() && commands.isEmpty() && replies.isEmpty() && pending.isEmpty()) {
+                close();
+            }
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            Metrics.ACTIVE_CONNECTIONS.decrement();
+            key.cancel();
+            try {
+                channel.close();
+                Log.SERVER.debug("Client disconnected: {}", channel);
+            } catch (IOException ex) {
+                Log.SERVER.warn("Could not close client {}", channel, ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package ca.concordia.server;
+
+import java.util.Properties;
+
+// Settings for FileServer itself, the filesystem has its own in MountOptions
+public class ServerOptions {
+
+    private FrontEnd frontEnd = FrontEnd.BLOCKING;
+    private ConnectionMode connectionMode = ConnectionMode.VIRTUAL;
+    private int poolSize = 64;
+    private int backlog = 1024;
+
+    // Reads the server.* system properties, anything missing keeps its default
+    //   server.frontEnd=blocking|selector
+    //   server.mode=virtual|pooled|thread_per_client   (blocking front end only)
+    //   server.poolSize=64     threads in POOLED mode, or selector workers
+    //   server.backlog=1024    connections the OS queues before accept()
+    public static ServerOptions fromProperties(Properties properties) {
+        ServerOptions options = new ServerOptions();
+        options.setFrontEnd(FrontEnd.valueOf(properties.getProperty("server.frontEnd", "blocking").toUpperCase()));
+        options.setConnectionMode(ConnectionMode.valueOf(
+                properties.getProperty("server.mode", "virtual").toUpperCase()));
+        options.setPoolSize(Integer.parseInt(properties.getProperty("server.poolSize", "64")));
+        options.setBacklog(Integer.parseInt(properties.getProperty("server.backlog", "1024")));
+        return options;
+    }
+
+    public FrontEnd getFrontEnd() {
+        return frontEnd;
+    }
+
+    public ServerOptions setFrontEnd(FrontEnd frontEnd) {
+        this.frontEnd = frontEnd;
+        return this;
+    }
+
+    public ConnectionMode getConnectionMode() {
+        return connectionMode;
+    }
+
+    public ServerOptions setConnectionMode(ConnectionMode connectionMode) {
+        this.connectionMode = connectionMode;
+        return this;
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public ServerOptions setPoolSize(int poolSize) {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("Pool size must be at least 1.");
+        }
+        this.poolSize = poolSize;
+        return this;
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public ServerOptions setBacklog(int backlog) {
+        this.backlog = backlog;
+        return this;
+    }
+}